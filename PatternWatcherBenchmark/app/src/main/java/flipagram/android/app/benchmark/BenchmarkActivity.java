@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.app.benchmark;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.widget.Button;
+import android.widget.TextView;
+
+/**
+ * Runs the benchmarks on a background thread and shows the results. Results are also logged
+ * so they can be collected with <code>adb logcat -s BenchmarkActivity</code>.
+ */
+public class BenchmarkActivity extends Activity {
+
+    private final static String TAG = BenchmarkActivity.class.getSimpleName();
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_benchmark);
+
+        final Button run = (Button) findViewById(R.id.run);
+        final TextView results = (TextView) findViewById(R.id.results);
+
+        run.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                run.setEnabled(false);
+                results.setText(R.string.running);
+                final WatcherSessionBenchmark sessions = new WatcherSessionBenchmark(BenchmarkActivity.this);
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        final String report =
+                            "MultiPatternMatcher\n" + new MultiPatternBenchmark().run() +
+                            "\nTextWindow\n" + new TextWindowBenchmark().run() +
+                            "\nEditing sessions\n" + sessions.run();
+                        Log.i(TAG, report);
+                        results.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                results.setText(report);
+                                run.setEnabled(true);
+                            }
+                        });
+                    }
+                }, TAG).start();
+            }
+        });
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.app.benchmark;
+
+import java.util.Random;
+
+/**
+ * Synthetic captions with roughly the hashtag, mention, link and emoji shortcode density of
+ * real Flipagram captions.
+ */
+public class Captions {
+    private static final String[] WORDS = {
+        "the", "summer", "with", "friends", "best", "day", "ever", "so", "much", "fun",
+        "beach", "sunset", "love", "this", "song", "road", "trip", "birthday", "party", "wow"
+    };
+    private static final String[] TAGS = {
+        "#flipagram", "#tbt", "#love", "#summer2015", "#nofilter", "#instagood", "#travel"
+    };
+    private static final String[] MENTIONS = {
+        "@flipagram", "@jane_doe", "@bob.smith", "@sk8r-boi", "@a"
+    };
+    private static final String[] LINKS = {
+        "http://flipagram.com/f/abc123", "https://example.com/some/path?q=1"
+    };
+    private static final String[] SHORTCODES = {
+        ":smile:", ":heart:", ":fire:", ":thumbs_up:"
+    };
+
+    /**
+     * @param length the length of the caption
+     * @param seed so that runs are repeatable
+     * @return a caption of exactly length characters
+     */
+    public static String caption(int length, long seed){
+        final Random random = new Random(seed);
+        final StringBuilder sb = new StringBuilder(length + 64);
+        while(sb.length()<length){
+            final int roll = random.nextInt(100);
+            if (roll<12)
+                sb.append(TAGS[random.nextInt(TAGS.length)]);
+            else if (roll<18)
+                sb.append(MENTIONS[random.nextInt(MENTIONS.length)]);
+            else if (roll<19)
+                sb.append(LINKS[random.nextInt(LINKS.length)]);
+            else if (roll<22)
+                sb.append(SHORTCODES[random.nextInt(SHORTCODES.length)]);
+            else
+                sb.append(WORDS[random.nextInt(WORDS.length)]);
+            sb.append(random.nextInt(12)==0 ? '\n' : ' ');
+        }
+        sb.setLength(length);
+        return sb.toString();
+    }
+}
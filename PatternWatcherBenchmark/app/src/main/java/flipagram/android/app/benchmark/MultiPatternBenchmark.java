@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.app.benchmark;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.text.SpannableStringBuilder;
+
+import flipagram.android.text.watcher.pattern.MultiPatternMatcher;
+import flipagram.android.text.watcher.pattern.SocialTokenizer;
+
+/**
+ * Compares one {@link java.util.regex.Matcher#find()} loop per pattern, as the pattern watchers
+ * used to do, with a single {@link flipagram.android.text.watcher.pattern.MultiPatternMatcher}
+ * pass over the same {@link android.text.Editable}, and with the same pass using
+ * {@link flipagram.android.text.watcher.pattern.SocialTokenizer}s in place of the hashtag,
+ * mention and link patterns.
+ */
+public class MultiPatternBenchmark {
+    public static final Pattern HASHTAG = Pattern.compile("#[A-z0-9]+");
+    public static final Pattern MENTION = Pattern.compile("@[A-z][A-z0-9\\._\\-]*");
+    public static final Pattern URL = Pattern.compile("https?://[^\\s]+");
+    public static final Pattern SHORTCODE = Pattern.compile(":[a-z0-9_]+:");
+    public static final Pattern[] PATTERNS = {HASHTAG, MENTION, URL, SHORTCODE};
+
+    private static final int[] LENGTHS = {100, 1000, 5000, 20000};
+
+    private int sink;
+
+    public String run(){
+        final StringBuilder report = new StringBuilder();
+        report.append(String.format("%-8s %12s %12s %8s %12s %8s\n",
+            "chars", "loop ns", "single ns", "speedup", "tokenize ns", "speedup"));
+        for (int length : LENGTHS) {
+            final SpannableStringBuilder text = new SpannableStringBuilder(Captions.caption(length, length));
+            final long loop = Timing.time(new PerPatternLoop(text));
+            final long single = Timing.time(new SinglePass(text, false));
+            final long tokenized = Timing.time(new SinglePass(text, true));
+            report.append(String.format("%-8d %12d %12d %7.2fx %12d %7.2fx\n",
+                length, loop, single, loop / (double) single, tokenized, loop / (double) tokenized));
+        }
+        return report.toString();
+    }
+
+    private class PerPatternLoop implements Runnable {
+        private final CharSequence text;
+
+        PerPatternLoop(CharSequence text){
+            this.text = text;
+        }
+
+        @Override public void run() {
+            for (Pattern pattern : PATTERNS) {
+                final Matcher matcher = pattern.matcher(text);
+                while(matcher.find())
+                    sink += matcher.end();
+            }
+        }
+    }
+
+    private class SinglePass implements Runnable, MultiPatternMatcher.OnMatchListener {
+        private final CharSequence text;
+        private final MultiPatternMatcher multiPatternMatcher = new MultiPatternMatcher();
+
+        SinglePass(CharSequence text, boolean tokenize){
+            this.text = text;
+            if (tokenize) {
+                multiPatternMatcher.add(SocialTokenizer.HASHTAG);
+                multiPatternMatcher.add(SocialTokenizer.MENTION);
+                multiPatternMatcher.add(SocialTokenizer.URL);
+                multiPatternMatcher.add(SHORTCODE);
+            } else {
+                for (Pattern pattern : PATTERNS)
+                    multiPatternMatcher.add(pattern);
+            }
+        }
+
+        @Override public void run() {
+            multiPatternMatcher.find(text, 0, text.length(), this);
+        }
+
+        @Override public void onMatch(int index, int matchStart, int matchEnd) {
+            sink += matchEnd;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.app.benchmark;
+
+import java.util.regex.Pattern;
+
+import android.text.SpannableStringBuilder;
+
+import flipagram.android.text.watcher.pattern.MultiPatternMatcher;
+import flipagram.android.text.watcher.pattern.SocialTokenizer;
+import flipagram.android.text.watcher.pattern.TextWindow;
+
+/**
+ * Compares matching directly over an {@link android.text.Editable}, a
+ * {@link android.text.SpannableStringBuilder#charAt} per character, with copying the text into
+ * a {@link flipagram.android.text.watcher.pattern.TextWindow} first, as the pattern watchers do.
+ * Both the whole text and a single token in the middle of it, as rescanned by
+ * {@link flipagram.android.text.watcher.pattern.PatternCharacterStyleTextWatcher.Incremental#TOKEN},
+ * are timed, with {@link flipagram.android.text.watcher.pattern.SocialTokenizer}s and with
+ * regular expressions.
+ */
+public class TextWindowBenchmark {
+    private static final int[] LENGTHS = {100, 1000, 5000, 20000};
+
+    private int sink;
+
+    public String run(){
+        final StringBuilder report = new StringBuilder();
+        report.append(String.format("%-8s %-10s %12s %12s %8s\n",
+            "chars", "region", "editable ns", "window ns", "speedup"));
+        for (int length : LENGTHS) {
+            final SpannableStringBuilder text = new SpannableStringBuilder(Captions.caption(length, length));
+            final int tokenStart = tokenStart(text, length / 2);
+            final int tokenEnd = tokenEnd(text, length / 2);
+            for (int tokenize = 1; tokenize >= 0; tokenize--) {
+                row(report, text, 0, length, tokenize==1 ? "text tok" : "text re", tokenize==1);
+                row(report, text, tokenStart, tokenEnd, tokenize==1 ? "token tok" : "token re", tokenize==1);
+            }
+        }
+        return report.toString();
+    }
+
+    private void row(
+            StringBuilder report,
+            CharSequence text,
+            int regionStart,
+            int regionEnd,
+            String region,
+            boolean tokenize
+    ){
+        final long editable = Timing.time(new Match(text, regionStart, regionEnd, tokenize, false));
+        final long window = Timing.time(new Match(text, regionStart, regionEnd, tokenize, true));
+        report.append(String.format("%-8d %-10s %12d %12d %7.2fx\n",
+            text.length(), region, editable, window, editable / (double) window));
+    }
+
+    private static int tokenStart(CharSequence text, int position){
+        while(position>0 && !Character.isWhitespace(text.charAt(position - 1)))
+            position--;
+        return position;
+    }
+
+    private static int tokenEnd(CharSequence text, int position){
+        while(position<text.length() && !Character.isWhitespace(text.charAt(position)))
+            position++;
+        return position;
+    }
+
+    private class Match implements Runnable, MultiPatternMatcher.OnMatchListener {
+        private final CharSequence text;
+        private final int regionStart;
+        private final int regionEnd;
+        private final boolean copy;
+        private final MultiPatternMatcher multiPatternMatcher = new MultiPatternMatcher();
+        private final TextWindow textWindow = new TextWindow();
+
+        Match(CharSequence text, int regionStart, int regionEnd, boolean tokenize, boolean copy){
+            this.text = text;
+            this.regionStart = regionStart;
+            this.regionEnd = regionEnd;
+            this.copy = copy;
+            if (tokenize) {
+                multiPatternMatcher.add(SocialTokenizer.HASHTAG);
+                multiPatternMatcher.add(SocialTokenizer.MENTION);
+                multiPatternMatcher.add(SocialTokenizer.URL);
+                multiPatternMatcher.add(MultiPatternBenchmark.SHORTCODE);
+            } else {
+                for (Pattern pattern : MultiPatternBenchmark.PATTERNS)
+                    multiPatternMatcher.add(pattern);
+            }
+        }
+
+        @Override public void run() {
+            if (copy) {
+                textWindow.copy(text, regionStart, regionEnd);
+                final int offset = textWindow.getOffset();
+                multiPatternMatcher.find(textWindow, regionStart - offset, regionEnd - offset, this);
+            } else {
+                multiPatternMatcher.find(text, regionStart, regionEnd, this);
+            }
+        }
+
+        @Override public void onMatch(int index, int matchStart, int matchEnd) {
+            sink += matchEnd;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.app.benchmark;
+
+/**
+ * Times a benchmark body.
+ */
+class Timing {
+    private static final long MIN_NANOS = 200000000L;
+
+    /**
+     * @return the mean nanoseconds per run, after a warm up
+     */
+    static long time(Runnable runnable){
+        for (int i = 0; i < 20; i++)
+            runnable.run();
+        int runs = 0;
+        final long start = System.nanoTime();
+        long elapsed;
+        do {
+            runnable.run();
+            runs++;
+            elapsed = System.nanoTime() - start;
+        } while(elapsed<MIN_NANOS);
+        return elapsed / runs;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.app.benchmark;
+
+import java.util.Arrays;
+
+import android.content.Context;
+import android.os.Debug;
+import android.text.Selection;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextWatcher;
+import android.text.style.ForegroundColorSpan;
+import android.widget.EditText;
+
+import flipagram.android.text.watcher.pattern.PatternCallbackTextWatcher;
+import flipagram.android.text.watcher.pattern.PatternCharacterStyleTextWatcher;
+import flipagram.android.text.watcher.pattern.PatternCharacterStyleTextWatcher.Incremental;
+import flipagram.android.text.watcher.pattern.PatternCharacterStyleTextWatcher.PatternCharacterStyle;
+import flipagram.android.text.watcher.pattern.SocialTokenizer;
+
+/**
+ * Drives the pattern watchers through scripted editing sessions on captions of 100 to 20000
+ * characters: typing a caption one character at a time into the middle of the text, deleting
+ * one character at a time from there, and pasting whole captions. The watchers are attached to
+ * a {@link android.text.SpannableStringBuilder} as an {@link android.widget.EditText} attaches
+ * them, so each keystroke costs what it would while typing, less the layout and drawing.
+ * <p>
+ * Reports the keystrokes per second, the median and 99th percentile time of a keystroke and
+ * the bytes allocated per keystroke.
+ */
+public class WatcherSessionBenchmark {
+    private static final int[] LENGTHS = {100, 1000, 5000, 20000};
+    private static final int KEYSTROKES = 200;
+    private static final int PASTES = 20;
+    private static final int PASTE_LENGTH = 500;
+    // Sessions run per row, after one to warm up
+    private static final int SESSIONS = 5;
+
+    private enum Session { TYPE, DELETE, PASTE }
+    private enum Watcher { CALLBACK, STYLE_TOKEN, STYLE_FULL }
+
+    private final SessionEditText editText;
+
+    /**
+     * Must be created on the main thread, it creates a view.
+     * @param context
+     */
+    public WatcherSessionBenchmark(Context context){
+        editText = new SessionEditText(context);
+    }
+
+    public String run(){
+        final StringBuilder report = new StringBuilder();
+        report.append(String.format("%-6s %-7s %-12s %10s %9s %9s %8s\n",
+            "chars", "session", "watcher", "keys/s", "p50 us", "p99 us", "B/key"));
+        for (int length : LENGTHS) {
+            for (Session session : Session.values()) {
+                for (Watcher watcher : Watcher.values())
+                    row(report, length, session, watcher);
+            }
+        }
+        return report.toString();
+    }
+
+    @SuppressWarnings("deprecation")
+    private void row(StringBuilder report, int length, Session session, Watcher watcher){
+        final int keystrokes = keystrokes(length, session);
+        final long[] nanos = new long[keystrokes * SESSIONS];
+        run(length, session, watcher, new long[keystrokes], 0);
+
+        Debug.resetThreadAllocSize();
+        for (int i = 0; i < SESSIONS; i++)
+            run(length, session, watcher, nanos, i * keystrokes);
+        final long allocated = Debug.getThreadAllocSize();
+
+        long total = 0;
+        for (long n : nanos)
+            total += n;
+        Arrays.sort(nanos);
+        report.append(String.format("%-6d %-7s %-12s %10.0f %9.1f %9.1f %8d\n",
+            length,
+            session.name().toLowerCase(),
+            watcher.name().toLowerCase(),
+            nanos.length * 1e9 / total,
+            nanos[nanos.length / 2] / 1000.0,
+            nanos[(int) Math.ceil(nanos.length * 0.99) - 1] / 1000.0,
+            allocated / nanos.length));
+    }
+
+    /**
+     * Run a session on a fresh copy of the caption, timing each keystroke into nanos from
+     * offset. Only the keystrokes are counted as allocation, setting up the text and the
+     * watcher and styling the whole caption to begin with aren't.
+     */
+    @SuppressWarnings("deprecation")
+    private void run(int length, Session session, Watcher watcher, long[] nanos, int offset){
+        final SpannableStringBuilder text = new SpannableStringBuilder(Captions.caption(length, length));
+        editText.text = text;
+        final TextWatcher textWatcher = newWatcher(watcher);
+        // As when the text is set, everything is new
+        textWatcher.onTextChanged(text, 0, 0, text.length());
+        textWatcher.afterTextChanged(text);
+        text.setSpan(textWatcher, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+
+        int cursor = wordStart(text, text.length() / 2);
+        final String typed = Captions.caption(Math.max(KEYSTROKES, PASTE_LENGTH), length + 1);
+        final int count = keystrokes(length, session);
+        for (int i = 0; i < count; i++) {
+            Selection.setSelection(text, cursor);
+            Debug.startAllocCounting();
+            final long start = System.nanoTime();
+            switch(session){
+                case TYPE:
+                    text.replace(cursor, cursor, typed, i, i + 1);
+                    cursor++;
+                    break;
+                case DELETE:
+                    text.replace(cursor - 1, cursor, "");
+                    cursor--;
+                    break;
+                case PASTE:
+                    text.replace(cursor, cursor, typed, 0, PASTE_LENGTH);
+                    cursor += PASTE_LENGTH;
+                    break;
+            }
+            nanos[offset + i] = System.nanoTime() - start;
+            Debug.stopAllocCounting();
+            // Run out of text to delete, start over from the end
+            if (cursor==0)
+                cursor = text.length();
+        }
+        text.removeSpan(textWatcher);
+    }
+
+    /**
+     * @return the keystrokes in a session, short captions can't take as many deletes
+     */
+    private static int keystrokes(int length, Session session){
+        switch(session){
+            case PASTE:
+                return PASTES;
+            case DELETE:
+                return Math.min(KEYSTROKES, length - 1);
+            default:
+                return KEYSTROKES;
+        }
+    }
+
+    private TextWatcher newWatcher(Watcher watcher){
+        switch(watcher){
+            case CALLBACK:
+                final PatternCallbackTextWatcher.Callback callback = new PatternCallbackTextWatcher.Callback() {
+                    @Override public void onMatch(int matchStart, int matchEnd) { }
+                    @Override public void noMatch() { }
+                };
+                return new PatternCallbackTextWatcher(editText)
+                    .setMaxMatchLength(64)
+                    .addPatternCallback(new PatternCallbackTextWatcher.PatternCallback(SocialTokenizer.HASHTAG, callback))
+                    .addPatternCallback(new PatternCallbackTextWatcher.PatternCallback(SocialTokenizer.MENTION, callback));
+            default:
+                return new PatternCharacterStyleTextWatcher(editText)
+                    .setIncremental(watcher==Watcher.STYLE_TOKEN ? Incremental.TOKEN : Incremental.OFF)
+                    .addPatternCharacterStyle(new PatternCharacterStyle(SocialTokenizer.HASHTAG, new ForegroundColorSpan(0xFF3F51B5)))
+                    .addPatternCharacterStyle(new PatternCharacterStyle(SocialTokenizer.MENTION, new ForegroundColorSpan(0xFF009688)))
+                    .addPatternCharacterStyle(new PatternCharacterStyle(SocialTokenizer.URL, new ForegroundColorSpan(0xFF2196F3)));
+        }
+    }
+
+    private static int wordStart(CharSequence text, int position){
+        while(position>0 && !Character.isWhitespace(text.charAt(position - 1)))
+            position--;
+        return position;
+    }
+
+    /**
+     * Reports the session's cursor to the callback watcher, without the text being set on it.
+     */
+    private static class SessionEditText extends EditText {
+        Spannable text;
+
+        SessionEditText(Context context){
+            super(context);
+        }
+
+        @Override public int getSelectionStart() {
+            return Selection.getSelectionStart(text);
+        }
+    }
+}
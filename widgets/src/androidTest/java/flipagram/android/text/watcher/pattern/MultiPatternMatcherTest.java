@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.text.watcher.pattern;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.test.AndroidTestCase;
+
+/**
+ * A single pass must report, for each pattern, exactly the matches of that pattern's own
+ * {@link java.util.regex.Matcher#find()} loop over the same region.
+ */
+public class MultiPatternMatcherTest extends AndroidTestCase {
+    private static final Pattern[] PATTERNS = {
+        // Triggered, overlapping each other
+        Pattern.compile("#\\w+"),
+        Pattern.compile("#\\w"),
+        Pattern.compile("[#@]\\w+"),
+        Pattern.compile("@\\w+(?:\\.\\w+)*"),
+        Pattern.compile("\\##"),
+        Pattern.compile("http\\S+", Pattern.CASE_INSENSITIVE),
+        // Started by chars that only fold to the trigger, such as the KELVIN SIGN and LONG S
+        Pattern.compile("k\\w+", Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE),
+        Pattern.compile("s\\w*", Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE),
+        Pattern.compile("[ki]s", Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE),
+        // Matches that run into the next trigger of the same pattern
+        Pattern.compile("#[^ ]*"),
+        // Untriggered: a class, an alternation, an optional first element, a lookbehind
+        Pattern.compile("\\d+"),
+        Pattern.compile("ab|#b"),
+        Pattern.compile("x*y"),
+        Pattern.compile("(?<=a)#\\w+"),
+    };
+    private static final String ALPHABET = "##@@aabxy1_. \nhtpHTP:/kKsSiI\u212A\u017F\u0130";
+    private static final int TEXTS = 500;
+
+    public void testMatchesAgreeWithFindLoops() {
+        final MultiPatternMatcher matcher = new MultiPatternMatcher();
+        for (Pattern pattern : PATTERNS)
+            matcher.add(pattern);
+        final Random random = new Random(7);
+        for (int t = 0; t < TEXTS; t++) {
+            final String text = text(random);
+            final int regionStart = random.nextInt(text.length() + 1);
+            final int regionEnd = regionStart + random.nextInt(text.length() - regionStart + 1);
+            assertSameMatches(matcher, text, 0, text.length());
+            assertSameMatches(matcher, text, regionStart, regionEnd);
+        }
+    }
+
+    public void testSkippedPatternsNotReported() {
+        final MultiPatternMatcher matcher = new MultiPatternMatcher();
+        for (Pattern pattern : PATTERNS)
+            matcher.add(pattern);
+        final boolean[] skip = new boolean[PATTERNS.length];
+        skip[0] = true;
+        skip[10] = true;
+        final Found found = new Found();
+        final String text = "#tag @name 123 #tag2";
+        matcher.find(text, 0, text.length(), text.length(), skip, found);
+        assertTrue(found.of(0).isEmpty());
+        assertTrue(found.of(10).isEmpty());
+        assertEquals(findLoop(PATTERNS[1], text, 0, text.length()), found.of(1));
+    }
+
+    private static void assertSameMatches(MultiPatternMatcher matcher, String text, int regionStart, int regionEnd){
+        final Found found = new Found();
+        matcher.find(text, regionStart, regionEnd, found);
+        for (int i = 0; i < PATTERNS.length; i++) {
+            assertEquals(
+                PATTERNS[i] + " in \"" + text + "\" " + regionStart + "-" + regionEnd,
+                findLoop(PATTERNS[i], text, regionStart, regionEnd),
+                found.of(i));
+        }
+    }
+
+    /**
+     * @return the matches of pattern's own find() loop, bounded like MultiPatternMatcher's
+     */
+    private static List<String> findLoop(Pattern pattern, String text, int regionStart, int regionEnd){
+        final List<String> matches = new ArrayList<String>();
+        final Matcher matcher = pattern.matcher(text);
+        matcher.useTransparentBounds(true);
+        matcher.useAnchoringBounds(false);
+        matcher.region(regionStart, regionEnd);
+        while(matcher.find())
+            matches.add(matcher.start() + "-" + matcher.end());
+        return matches;
+    }
+
+    private static String text(Random random){
+        final int length = random.nextInt(40);
+        final StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+            sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        return sb.toString();
+    }
+
+    private static class Found implements MultiPatternMatcher.OnMatchListener {
+        private final List<List<String>> matches = new ArrayList<List<String>>();
+
+        @Override public void onMatch(int index, int matchStart, int matchEnd) {
+            of(index).add(matchStart + "-" + matchEnd);
+        }
+
+        List<String> of(int index){
+            while(matches.size()<=index)
+                matches.add(new ArrayList<String>());
+            return matches.get(index);
+        }
+    }
+}
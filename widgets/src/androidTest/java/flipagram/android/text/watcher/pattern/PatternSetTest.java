@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.text.watcher.pattern;
+
+import java.util.regex.Pattern;
+
+import android.test.AndroidTestCase;
+import android.text.Spanned;
+import android.text.SpannableStringBuilder;
+import android.text.style.ForegroundColorSpan;
+
+import flipagram.android.text.watcher.pattern.PatternCharacterStyleTextWatcher.PatternCharacterStyle;
+import flipagram.android.text.watcher.pattern.PatternCharacterStyleTextWatcher.PatternSpan;
+
+/**
+ * A watcher starts from the matcher of a pattern set even when some of the set's patterns
+ * have no style, and styles only those that do.
+ */
+public class PatternSetTest extends AndroidTestCase {
+    private static final String NAME = "PatternSetTest";
+    private static final ForegroundColorSpan HASHTAG_STYLE = new ForegroundColorSpan(0xff0000ff);
+    private static final ForegroundColorSpan MENTION_STYLE = new ForegroundColorSpan(0xff00ff00);
+
+    private PatternSet patternSet;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        patternSet = PatternSet.register(NAME, new PatternSet()
+            .add(new PatternCharacterStyle(SocialTokenizer.HASHTAG, HASHTAG_STYLE))
+            // Only for callbacks
+            .add(Pattern.compile("\\$\\w+"))
+            .add(new PatternCharacterStyle(SocialTokenizer.MENTION, MENTION_STYLE)));
+    }
+
+    @Override protected void tearDown() throws Exception {
+        PatternSet.unregister(NAME);
+        super.tearDown();
+    }
+
+    public void testMixedSetShared() {
+        final PatternCharacterStyleTextWatcher watcher = new PatternCharacterStyleTextWatcher(null)
+            .addPatternSet(patternSet);
+        final MultiPatternMatcher matcher = watcher.getMultiPatternMatcher();
+        final MultiPatternMatcher copy = patternSet.newMatcher();
+        assertEquals(copy.size(), matcher.size());
+        // A copy of the set's matcher shares its trigger tables
+        for (char trigger : new char[]{'#', '$', '@'}) {
+            assertNotNull(copy.triggersFor(trigger));
+            assertSame(copy.triggersFor(trigger), matcher.triggersFor(trigger));
+        }
+    }
+
+    public void testUnstyledPatternsNotStyled() {
+        final PatternCharacterStyleTextWatcher watcher = new PatternCharacterStyleTextWatcher(null)
+            .addPatternSet(patternSet);
+        final SpannableStringBuilder s = new SpannableStringBuilder("#tag $cash @name");
+        watcher.beforeTextChanged(s, 0, 0, s.length());
+        watcher.onTextChanged(s, 0, 0, s.length());
+        watcher.afterTextChanged(s);
+
+        final PatternSpan[] spans = s.getSpans(0, s.length(), PatternSpan.class);
+        assertEquals(2, spans.length);
+        assertStyled(s, HASHTAG_STYLE, 0, 4);
+        assertStyled(s, MENTION_STYLE, 11, 16);
+    }
+
+    private static void assertStyled(Spanned s, ForegroundColorSpan style, int start, int end){
+        for (PatternSpan span : s.getSpans(0, s.length(), PatternSpan.class)) {
+            if (span.getStyle()==style) {
+                assertEquals(start, s.getSpanStart(span));
+                assertEquals(end, s.getSpanEnd(span));
+                return;
+            }
+        }
+        fail("no span of " + style);
+    }
+}
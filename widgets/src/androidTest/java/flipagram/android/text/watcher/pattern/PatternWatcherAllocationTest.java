@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.text.watcher.pattern;
+
+import android.graphics.Typeface;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.text.Editable;
+import android.text.Selection;
+import android.text.SpannableStringBuilder;
+import android.text.TextWatcher;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StyleSpan;
+import android.widget.EditText;
+
+import flipagram.android.text.watcher.pattern.PatternCallbackTextWatcher.PatternCallback;
+import flipagram.android.text.watcher.pattern.PatternCharacterStyleTextWatcher.PatternCharacterStyle;
+
+/**
+ * Once warmed up, a keystroke must not allocate in either watcher. Only the watcher's own calls
+ * are counted, the edits of the {@link android.text.Editable} in between are not.
+ */
+public class PatternWatcherAllocationTest extends InstrumentationTestCase {
+    private static final String CAPTION =
+        "Golden hour at the pier #sunset #beach with @alice and @bob_smith http://flipagram.com/f/abc\n";
+    private static final String TYPED = "#nofilter @carol ";
+    private static final int WARM_UP = 5;
+
+    public void testStyleWatcherKeystrokesDontAllocate() {
+        final SpannableStringBuilder s = new SpannableStringBuilder(repeat(CAPTION, 50));
+        final PatternCharacterStyleTextWatcher watcher = new PatternCharacterStyleTextWatcher(null)
+            .addPatternCharacterStyle(new PatternCharacterStyle(SocialTokenizer.HASHTAG, new ForegroundColorSpan(0xff0000ff)))
+            .addPatternCharacterStyle(new PatternCharacterStyle(SocialTokenizer.MENTION, new ForegroundColorSpan(0xff0000ff)))
+            .addPatternCharacterStyle(new PatternCharacterStyle(SocialTokenizer.URL, new StyleSpan(Typeface.BOLD)))
+            .setIncremental(PatternCharacterStyleTextWatcher.Incremental.TOKEN);
+        // Style all of the text to begin with
+        watcher.beforeTextChanged(s, 0, 0, s.length());
+        watcher.onTextChanged(s, 0, 0, s.length());
+        watcher.afterTextChanged(s);
+
+        final int position = CAPTION.length() * 25;
+        for (int i = 0; i < WARM_UP; i++)
+            typeAndDelete(s, watcher, position);
+        assertEquals(0, typeAndDelete(s, watcher, position));
+        assertEquals(repeat(CAPTION, 50), s.toString());
+    }
+
+    public void testCallbackWatcherKeystrokesDontAllocate() throws Throwable {
+        runTestOnUiThread(new Runnable() {
+            @Override public void run() {
+                final EditText editText = new EditText(getInstrumentation().getTargetContext());
+                editText.setText(repeat(CAPTION, 50));
+                final Editable s = editText.getText();
+                final PatternCallbackTextWatcher.Callback callback = new PatternCallbackTextWatcher.Callback() {
+                    @Override public void onMatch(int matchStart, int matchEnd) {
+                    }
+                    @Override public void noMatch() {
+                    }
+                };
+                final PatternCallbackTextWatcher watcher = new PatternCallbackTextWatcher(editText)
+                    .addPatternCallback(new PatternCallback(SocialTokenizer.HASHTAG, callback))
+                    .addPatternCallback(new PatternCallback(SocialTokenizer.MENTION, callback))
+                    .addPatternCallback(new PatternCallback(SocialTokenizer.URL, callback))
+                    .setMaxMatchLength(64);
+
+                final int position = CAPTION.length() * 25;
+                Selection.setSelection(s, position);
+                for (int i = 0; i < WARM_UP; i++)
+                    typeAndDelete(s, watcher, position);
+                assertEquals(0, typeAndDelete(s, watcher, position));
+            }
+        });
+    }
+
+    /**
+     * Type TYPED at position and then delete it again, a character at a time.
+     * @return the objects the watcher allocated
+     */
+    @SuppressWarnings("deprecation")
+    private static int typeAndDelete(Editable s, TextWatcher watcher, int position){
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < TYPED.length(); i++) {
+            final int at = position + i;
+            count(true);
+            watcher.beforeTextChanged(s, at, 0, 1);
+            count(false);
+            s.insert(at, TYPED, i, i + 1);
+            Selection.setSelection(s, at + 1);
+            count(true);
+            watcher.onTextChanged(s, at, 0, 1);
+            watcher.afterTextChanged(s);
+            count(false);
+        }
+        for (int i = TYPED.length() - 1; i >= 0; i--) {
+            final int at = position + i;
+            count(true);
+            watcher.beforeTextChanged(s, at, 1, 0);
+            count(false);
+            s.delete(at, at + 1);
+            Selection.setSelection(s, at);
+            count(true);
+            watcher.onTextChanged(s, at, 1, 0);
+            watcher.afterTextChanged(s);
+            count(false);
+        }
+        return Debug.getThreadAllocCount();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void count(boolean on){
+        if (on)
+            Debug.startAllocCounting();
+        else
+            Debug.stopAllocCounting();
+    }
+
+    private static String repeat(String s, int times){
+        final StringBuilder sb = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++)
+            sb.append(s);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.text.watcher.pattern;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Each tokenizer must find exactly what its pattern finds. The text is random captions with
+ * the punctuation, scripts and surrogate pairs the character class tests are most likely to
+ * get wrong mixed in. Android's regular expressions look behind a code point at a time, the
+ * JVM's a char at a time, so there the patterns miss a supplementary letter before a token.
+ */
+public class SocialTokenizerTest extends AndroidTestCase {
+    private static final int CAPTIONS = 2000;
+
+    private static final String[] WORDS = {
+        "the", "summer", "with", "friends", "best", "day", "ever", "beach", "sunset", "love",
+        "caf\u00E9", "cafe\u0301", "\u65E5\u672C\u8A9E", "\u041F\u0440\u0438\u0432\u0435\u0442",
+        "\u0645\u0631\u062D\u0628\u0627", "x2", "100", "\uD835\uDC00bc"
+    };
+    private static final String[] TOKENS = {
+        "#flipagram", "#tbt", "#summer2015", "#no_filter", "\uFF03\u5168\u89D2", "#\u00E9", "#e\u0301",
+        "@flipagram", "@jane_doe", "@bob.smith", "@sk8r-boi", "@a", "\uFF20\u30E6\u30FC\u30B6\u30FC", "@bob..",
+        "http://flipagram.com/f/abc123", "https://example.com/some/path?q=1",
+        "HTTP://EXAMPLE.COM", "hTtPs://x.y/(z)", "http://", "https://.", "http://a."
+    };
+    // Characters next to which a token may or may not start or end: the ASCII punctuation,
+    // including that between Z and a, kinds of space, a combining mark, surrogate pairs and
+    // the fullwidth triggers
+    private static final String[] PUNCTUATION = {
+        "#", "@", "&", "&#39;", "_", "-", ".", "..", ",", ";", ":", "!", "?", "'", "\"", "(", ")",
+        "[", "]", "\\", "^", "`", "{", "}", "/", "*", "+", "=", "|", "~", "$", "%", "<", ">",
+        "A", "Z", "a", "z", "0", "9", " ", "\t", "\n", "\u000B", "\u001F", "\u0085", "\u00A0",
+        "\u2007", "\u2028", "\u3000", "\u0301", "\uD83D\uDE00", "\uD835\uDC00", "\uFF03", "\uFF20",
+        "h", "http", "://"
+    };
+
+    public void testTokenizersAgreeWithPatterns() {
+        final Random random = new Random(42);
+        for (int c = 0; c < CAPTIONS; c++) {
+            final String caption = caption(random);
+            for (SocialTokenizer tokenizer : SocialTokenizer.values())
+                assertEquals(tokenizer + " in \"" + caption + "\"", regexMatches(tokenizer, caption), tokenizerMatches(tokenizer, caption));
+        }
+    }
+
+    /**
+     * @return a caption of words and tokens, with punctuation stuck to either side of some
+     */
+    private static String caption(Random random){
+        final StringBuilder sb = new StringBuilder();
+        final int pieces = 1 + random.nextInt(20);
+        for (int p = 0; p < pieces; p++) {
+            if (random.nextInt(3)==0)
+                sb.append(pick(random, PUNCTUATION));
+            sb.append(random.nextInt(3)==0 ? pick(random, TOKENS) : pick(random, WORDS));
+            if (random.nextInt(3)==0)
+                sb.append(pick(random, PUNCTUATION));
+            if (random.nextInt(4)!=0)
+                sb.append(random.nextInt(12)==0 ? '\n' : ' ');
+        }
+        return sb.toString();
+    }
+
+    private static String pick(Random random, String[] strings){
+        return strings[random.nextInt(strings.length)];
+    }
+
+    private static List<String> regexMatches(SocialTokenizer tokenizer, String s){
+        final List<String> matches = new ArrayList<String>();
+        final Matcher matcher = tokenizer.pattern.matcher(s);
+        while(matcher.find())
+            matches.add(matcher.start() + "-" + matcher.end());
+        return matches;
+    }
+
+    /**
+     * Like {@link java.util.regex.Matcher#find()}, the next search starts where a match ended.
+     */
+    private static List<String> tokenizerMatches(SocialTokenizer tokenizer, String s){
+        final List<String> matches = new ArrayList<String>();
+        int i = 0;
+        while(i<s.length()){
+            final int end = tokenizer.matchEnd(s, i, s.length());
+            if (end>=0) {
+                matches.add(i + "-" + end);
+                i = end;
+            } else {
+                i++;
+            }
+        }
+        return matches;
+    }
+}
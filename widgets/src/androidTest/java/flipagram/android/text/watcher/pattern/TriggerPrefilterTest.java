@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.text.watcher.pattern;
+
+import java.util.regex.Pattern;
+
+import android.test.AndroidTestCase;
+
+/**
+ * A pattern may only be skipped where it can't have matched, before or after the edit.
+ */
+public class TriggerPrefilterTest extends AndroidTestCase {
+    private static final Pattern CASELESS = Pattern.compile("k\\w+", Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+
+    public void testSkippedWithoutTriggers() {
+        final TriggerPrefilter prefilter = prefilter(CASELESS);
+        assertSkipped(prefilter, "hello ", "world", true);
+        assertSkipped(prefilter, "hello ", "kitten", false);
+        assertSkipped(prefilter, "hello ", "Kitten", false);
+    }
+
+    public void testNotSkippedForCharsThatFoldToTrigger() {
+        final TriggerPrefilter prefilter = prefilter(CASELESS);
+        // KELVIN SIGN matches k ignoring case
+        assertTrue(CASELESS.matcher("\u212Aelvin").matches());
+        assertSkipped(prefilter, "hello ", "\u212Aelvin", false);
+    }
+
+    public void testUntriggeredNeverSkipped() {
+        final TriggerPrefilter prefilter = prefilter(Pattern.compile("\\d+"));
+        assertSkipped(prefilter, "hello ", "world", false);
+    }
+
+    private static TriggerPrefilter prefilter(Pattern pattern){
+        final TriggerPrefilter prefilter = new TriggerPrefilter();
+        prefilter.add(null, null, pattern);
+        return prefilter;
+    }
+
+    /**
+     * Insert inserted after before, rescanned up to then, and filter the inserted region.
+     */
+    private static void assertSkipped(TriggerPrefilter prefilter, String before, String inserted, boolean skipped){
+        prefilter.rescanned();
+        prefilter.beforeTextChanged(before, before.length(), 0);
+        final String s = before + inserted;
+        assertEquals(skipped ? 0 : 1, prefilter.filter(s, before.length(), s.length()));
+        assertEquals(skipped, prefilter.getSkip()[0]);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.widget;
+
+import android.content.Context;
+import android.graphics.Point;
+import android.test.AndroidTestCase;
+import android.view.View;
+import android.view.View.MeasureSpec;
+
+public class RatioDynamicLayoutTest extends AndroidTestCase {
+    private RatioDynamicLayout layout;
+    private CountingView[] children;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        layout = new RatioDynamicLayout(getContext());
+        children = new CountingView[3];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = new CountingView(getContext());
+            final RatioDynamicLayout.LayoutParams lp = new RatioDynamicLayout.LayoutParams(100, 50, 0.25f * i, 0.25f * i);
+            // One sized by its ratio, the others by their content
+            lp.ratio = i==0 ? 0.5f : 0;
+            layout.addView(children[i], lp);
+        }
+    }
+
+    public void testChildrenMeasuredOncePerPass() {
+        measureAndLayout(400, 300);
+        assertMeasureCounts(1, 1, 1);
+
+        // A new size is a new pass for every child
+        resetCounts();
+        measureAndLayout(500, 300);
+        assertMeasureCounts(1, 1, 1);
+    }
+
+    public void testChangedChildMeasuredAgain() {
+        measureAndLayout(400, 300);
+
+        resetCounts();
+        children[1].requestLayout();
+        measureAndLayout(400, 300);
+        assertMeasureCounts(0, 1, 0);
+    }
+
+    public void testCenterPointResolvedAtFinalSize() {
+        final RatioDynamicLayout.LayoutParams lp = (RatioDynamicLayout.LayoutParams) children[0].getLayoutParams();
+        lp.centerPoint = new Point(100, 50);
+        // A parent trying out a size before settling on another
+        layout.measure(
+            MeasureSpec.makeMeasureSpec(400, MeasureSpec.EXACTLY),
+            MeasureSpec.makeMeasureSpec(300, MeasureSpec.EXACTLY));
+        measureAndLayout(200, 100);
+
+        assertNull(lp.centerPoint);
+        assertEquals(0.25f, lp.x);
+        assertEquals(0.25f, lp.y);
+        assertEquals(50, children[0].getLeft());
+        assertEquals(25, children[0].getTop());
+    }
+
+    public void testChildAddedBeforeLayout() {
+        layout.measure(
+            MeasureSpec.makeMeasureSpec(400, MeasureSpec.EXACTLY),
+            MeasureSpec.makeMeasureSpec(300, MeasureSpec.EXACTLY));
+        final View added = new View(getContext());
+        layout.addView(added, 0, new RatioDynamicLayout.LayoutParams(0, 0, 0.5f, 0.5f));
+        layout.layout(0, 0, 400, 300);
+
+        assertEquals(200, added.getLeft());
+        assertEquals(150, added.getTop());
+    }
+
+    private void measureAndLayout(int width, int height){
+        layout.measure(
+            MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY),
+            MeasureSpec.makeMeasureSpec(height, MeasureSpec.EXACTLY));
+        layout.layout(0, 0, layout.getMeasuredWidth(), layout.getMeasuredHeight());
+    }
+
+    private void resetCounts(){
+        for (CountingView child : children)
+            child.measureCount = 0;
+    }
+
+    private void assertMeasureCounts(int... counts){
+        for (int i = 0; i < counts.length; i++)
+            assertEquals("child " + i, counts[i], children[i].measureCount);
+    }
+
+    private static class CountingView extends View {
+        int measureCount;
+
+        CountingView(Context context){
+            super(context);
+        }
+
+        @Override protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+            measureCount++;
+            super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+        }
+    }
+}
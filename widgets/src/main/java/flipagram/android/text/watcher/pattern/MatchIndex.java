@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.text.watcher.pattern;
+
+import java.util.Arrays;
+
+/**
+ * The matches of each of a watcher's patterns, sorted by start and kept up to date as the text
+ * is edited, so that the match at a position is a binary search away rather than a rescan. The
+ * matches of one pattern never overlap, as with {@link java.util.regex.Matcher#find()}, so their
+ * ends are sorted too.
+ */
+class MatchIndex {
+    private int[][] starts = new int[0][];
+    private int[][] ends = new int[0][];
+    private int[] sizes = new int[0];
+
+    /**
+     * Empty the index, making room for the given number of patterns.
+     */
+    void reset(int patterns){
+        starts = new int[patterns][16];
+        ends = new int[patterns][16];
+        sizes = new int[patterns];
+    }
+
+    int patterns(){
+        return sizes.length;
+    }
+
+    int size(int index){
+        return sizes[index];
+    }
+
+    int start(int index, int i){
+        return starts[index][i];
+    }
+
+    int end(int index, int i){
+        return ends[index][i];
+    }
+
+    /**
+     * The count characters at start replaced before old ones. Matches after the edit are moved
+     * along and matches touching it are dropped, to be found again by the rescan that follows.
+     */
+    void textChanged(int start, int before, int count){
+        final int delta = count - before;
+        for (int index = 0; index < sizes.length; index++) {
+            final int[] s = starts[index];
+            final int[] e = ends[index];
+            int kept = 0;
+            for (int i = 0; i < sizes[index]; i++) {
+                if (e[i]<start) {
+                    s[kept] = s[i];
+                    e[kept++] = e[i];
+                } else if (s[i]>start + before) {
+                    s[kept] = s[i] + delta;
+                    e[kept++] = e[i] + delta;
+                }
+            }
+            sizes[index] = kept;
+        }
+    }
+
+    /**
+     * Replace the matches of pattern index within the region with those found there. Matches
+     * straddling either end of the region, which the edit didn't touch, are kept: the region
+     * cuts them short so the ones found in their place overlap them and are ignored.
+     */
+    void replace(int index, int regionStart, int regionEnd, MatchList found){
+        int[] s = starts[index];
+        int[] e = ends[index];
+        final int size = sizes[index];
+        final int from = firstStartingAtOrAfter(index, regionStart);
+        int to = firstStartingAtOrAfter(index, regionEnd);
+        if (to>from && e[to - 1]>regionEnd)
+            to--;
+        final int keptEnd = from>0 ? e[from - 1] : Integer.MIN_VALUE;
+        final int keptStart = to<size ? s[to] : Integer.MAX_VALUE;
+
+        int count = 0;
+        for (int m = 0; m < found.size(); m++) {
+            if (found.index(m)==index && isClear(found, m, keptEnd, keptStart))
+                count++;
+        }
+        final int newSize = size - (to - from) + count;
+        if (newSize>s.length) {
+            final int capacity = Math.max(newSize, s.length * 2);
+            s = starts[index] = Arrays.copyOf(s, capacity);
+            e = ends[index] = Arrays.copyOf(e, capacity);
+        }
+        System.arraycopy(s, to, s, from + count, size - to);
+        System.arraycopy(e, to, e, from + count, size - to);
+        int i = from;
+        for (int m = 0; m < found.size(); m++) {
+            if (found.index(m)==index && isClear(found, m, keptEnd, keptStart)) {
+                s[i] = found.start(m);
+                e[i++] = found.end(m);
+            }
+        }
+        sizes[index] = newSize;
+    }
+
+    private static boolean isClear(MatchList found, int m, int keptEnd, int keptStart){
+        return found.start(m)>=keptEnd && found.end(m)<=keptStart && found.start(m)<keptStart;
+    }
+
+    /**
+     * @return the position in the index of the match of pattern index that contains position,
+     * a match ending at position included, or -1
+     */
+    int matchAt(int index, int position){
+        final int i = firstStartingAtOrAfter(index, position + 1) - 1;
+        return i>=0 && ends[index][i]>=position ? i : -1;
+    }
+
+    /**
+     * @return the position in the index of the first match of pattern index ending at or after
+     * position
+     */
+    int firstEndingAtOrAfter(int index, int position){
+        final int[] e = ends[index];
+        int low = 0;
+        int high = sizes[index];
+        while(low<high){
+            final int mid = (low + high) >>> 1;
+            if (e[mid]<position)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private int firstStartingAtOrAfter(int index, int position){
+        final int[] s = starts[index];
+        int low = 0;
+        int high = sizes[index];
+        while(low<high){
+            final int mid = (low + high) >>> 1;
+            if (s[mid]<position)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.text.watcher.pattern;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of the matches reported by a
+ * {@link flipagram.android.text.watcher.pattern.MultiPatternMatcher}, kept as primitive arrays so
+ * it can be reused from one keystroke to the next.
+ */
+class MatchList implements MultiPatternMatcher.OnMatchListener {
+    private int[] index = new int[16];
+    private int[] start = new int[16];
+    private int[] end = new int[16];
+    private int size;
+
+    @Override public void onMatch(int index, int matchStart, int matchEnd) {
+        if (size==this.index.length) {
+            this.index = Arrays.copyOf(this.index, size * 2);
+            start = Arrays.copyOf(start, size * 2);
+            end = Arrays.copyOf(end, size * 2);
+        }
+        this.index[size] = index;
+        start[size] = matchStart;
+        end[size] = matchEnd;
+        size++;
+    }
+
+    void clear(){
+        size = 0;
+    }
+
+    /**
+     * Move every match by delta, from positions in a
+     * {@link flipagram.android.text.watcher.pattern.TextWindow} to positions in its text.
+     */
+    void shift(int delta){
+        for (int i = 0; i < size; i++) {
+            start[i] += delta;
+            end[i] += delta;
+        }
+    }
+
+    int size(){
+        return size;
+    }
+
+    int index(int i){
+        return index[i];
+    }
+
+    int start(int i){
+        return start[i];
+    }
+
+    int end(int i){
+        return end[i];
+    }
+}
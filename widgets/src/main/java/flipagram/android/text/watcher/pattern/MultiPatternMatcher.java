@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.text.watcher.pattern;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the matches of several {@link java.util.regex.Pattern}s in a single pass over the text.
+ * <p>
+ * Most patterns can only start with one of a few characters (<code>#</code> for hashtags,
+ * <code>@</code> for mentions). Those trigger characters are worked out from each pattern and
+ * the text is walked once; the patterns keyed by a character are only tried, anchored, where
+ * that character appears. Patterns without a recognizable first character fall back to their
+ * own {@link java.util.regex.Matcher#find()} loop. A
+ * {@link flipagram.android.text.watcher.pattern.SocialTokenizer} is tried the same way, without
+ * a regular expression.
+ * <p>
+ * The matches reported for each pattern are exactly those of a {@link java.util.regex.Matcher#find()}
+ * loop over the same region, so patterns may overlap each other. Not thread safe, each thread
+ * needs its own instance.
+ */
+public class MultiPatternMatcher {
+
+    private final List<Pattern> patterns = new ArrayList<Pattern>();
+    private Matcher[] matchers = new Matcher[0];
+    private SocialTokenizer[] tokenizers = new SocialTokenizer[0];
+    private int[] nextStart = new int[0];
+    private boolean[] triggered = new boolean[0];
+
+    // Pattern indexes keyed by trigger character, ASCII in a table and the rest in a list
+    private final int[][] asciiTriggers = new int[128][];
+    private char[] otherTriggerChars = new char[0];
+    private int[][] otherTriggers = new int[0][];
+    // Patterns without a trigger character
+    private int[] untriggered = new int[0];
+
+    public MultiPatternMatcher(){ }
+
+    /**
+     * A matcher for the same patterns as prototype. The trigger tables worked out from the
+     * patterns are shared rather than worked out again, only the
+     * {@link java.util.regex.Matcher}s are new.
+     * @param prototype
+     */
+    MultiPatternMatcher(MultiPatternMatcher prototype){
+        final int n = prototype.patterns.size();
+        patterns.addAll(prototype.patterns);
+        matchers = new Matcher[n];
+        for (int i = 0; i < n; i++) {
+            if (prototype.matchers[i]!=null)
+                matchers[i] = newMatcher(patterns.get(i));
+        }
+        tokenizers = prototype.tokenizers.clone();
+        nextStart = new int[n];
+        triggered = prototype.triggered.clone();
+        // The arrays of pattern indexes are copied on write, only the tables need copying
+        System.arraycopy(prototype.asciiTriggers, 0, asciiTriggers, 0, asciiTriggers.length);
+        otherTriggerChars = prototype.otherTriggerChars.clone();
+        otherTriggers = prototype.otherTriggers.clone();
+        untriggered = prototype.untriggered;
+    }
+
+    /**
+     * Add a {@link java.util.regex.Pattern}.
+     * @param pattern
+     * @return the index the matches of this pattern are reported with
+     */
+    public int add(Pattern pattern){
+        final int index = grow(pattern, null);
+        matchers[index] = newMatcher(pattern);
+
+        final char[] triggers = triggerChars(pattern);
+        if (triggers==null) {
+            untriggered = append(untriggered, index);
+        } else {
+            triggered[index] = true;
+            for (char c : triggers)
+                addTrigger(c, index);
+        }
+        return index;
+    }
+
+    /**
+     * Add a {@link flipagram.android.text.watcher.pattern.SocialTokenizer}.
+     * @param tokenizer
+     * @return the index the matches of this tokenizer are reported with
+     */
+    public int add(SocialTokenizer tokenizer){
+        final int index = grow(tokenizer.pattern, tokenizer);
+        triggered[index] = true;
+        for (char c : tokenizer.getTriggers())
+            addTrigger(c, index);
+        return index;
+    }
+
+    private int grow(Pattern pattern, SocialTokenizer tokenizer){
+        final int index = patterns.size();
+        patterns.add(pattern);
+        matchers = Arrays.copyOf(matchers, index + 1);
+        tokenizers = Arrays.copyOf(tokenizers, index + 1);
+        tokenizers[index] = tokenizer;
+        nextStart = Arrays.copyOf(nextStart, index + 1);
+        triggered = Arrays.copyOf(triggered, index + 1);
+        return index;
+    }
+
+    private static Matcher newMatcher(Pattern pattern){
+        final Matcher matcher = pattern.matcher("");
+        matcher.useTransparentBounds(true);
+        matcher.useAnchoringBounds(false);
+        return matcher;
+    }
+
+    /**
+     * @return the number of patterns added
+     */
+    public int size(){
+        return patterns.size();
+    }
+
+    /**
+     * @return the pattern at index, for a tokenizer its equivalent pattern
+     */
+    public Pattern getPattern(int index){
+        return patterns.get(index);
+    }
+
+    /**
+     * @return the tokenizer at index, or null if a pattern was added
+     */
+    public SocialTokenizer getTokenizer(int index){
+        return tokenizers[index];
+    }
+
+    /**
+     * Report every match within the region.
+     * @see #find(CharSequence, int, int, int, OnMatchListener)
+     */
+    public void find(CharSequence text, int regionStart, int regionEnd, OnMatchListener listener){
+        find(text, regionStart, regionEnd, regionEnd, listener);
+    }
+
+    /**
+     * Report the matches within the region that start at or before maxStart.
+     * @see #find(CharSequence, int, int, int, boolean[], OnMatchListener)
+     */
+    public void find(
+            CharSequence text,
+            int regionStart,
+            int regionEnd,
+            int maxStart,
+            OnMatchListener listener
+    ){
+        find(text, regionStart, regionEnd, maxStart, null, listener);
+    }
+
+    /**
+     * Report the matches within the region that start at or before maxStart. As with
+     * {@link java.util.regex.Matcher#useTransparentBounds} the patterns can look outside
+     * of the region, but matches are within it.
+     * @param text
+     * @param regionStart
+     * @param regionEnd
+     * @param maxStart matches starting after this are not reported
+     * @param skip by index, the patterns to leave out, or null to look for all of them
+     * @param listener
+     */
+    public void find(
+            CharSequence text,
+            int regionStart,
+            int regionEnd,
+            int maxStart,
+            boolean[] skip,
+            OnMatchListener listener
+    ){
+        for (int u = 0; u < untriggered.length; u++) {
+            final int index = untriggered[u];
+            if (skip!=null && skip[index])
+                continue;
+            final Matcher matcher = matchers[index];
+            matcher.reset(text);
+            matcher.region(regionStart, regionEnd);
+            while(matcher.find() && matcher.start()<=maxStart)
+                listener.onMatch(index, matcher.start(), matcher.end());
+            matcher.reset("");
+        }
+
+        boolean any = false;
+        for (int i = 0; i < patterns.size(); i++) {
+            if (!triggered[i] || skip!=null && skip[i]) {
+                // Never tried at a trigger, so neither is their matcher reset
+                nextStart[i] = Integer.MAX_VALUE;
+                continue;
+            }
+            any = true;
+            nextStart[i] = regionStart;
+            if (matchers[i]!=null)
+                matchers[i].reset(text);
+        }
+        if (!any)
+            return;
+
+        final int last = Math.min(maxStart, regionEnd - 1);
+        for (int position = regionStart; position <= last; position++) {
+            final int[] indexes = triggersFor(text.charAt(position));
+            if (indexes==null)
+                continue;
+            for (int i = 0; i < indexes.length; i++) {
+                final int index = indexes[i];
+                // Inside this pattern's previous match, find() would not look here
+                if (position<nextStart[index])
+                    continue;
+                final SocialTokenizer tokenizer = tokenizers[index];
+                if (tokenizer!=null) {
+                    final int end = tokenizer.matchEnd(text, position, regionEnd);
+                    if (end>=0) {
+                        nextStart[index] = end;
+                        listener.onMatch(index, position, end);
+                    }
+                    continue;
+                }
+                final Matcher matcher = matchers[index];
+                matcher.region(position, regionEnd);
+                if (matcher.lookingAt()) {
+                    final int end = matcher.end();
+                    nextStart[index] = end==position ? position + 1 : end;
+                    listener.onMatch(index, position, end);
+                }
+            }
+        }
+        // Don't hold on to the text
+        for (int i = 0; i < patterns.size(); i++) {
+            if (matchers[i]!=null && nextStart[i]!=Integer.MAX_VALUE)
+                matchers[i].reset("");
+        }
+    }
+
+    int[] triggersFor(char c){
+        if (c<128)
+            return asciiTriggers[c];
+        for (int i = 0; i < otherTriggerChars.length; i++) {
+            if (otherTriggerChars[i]==c)
+                return otherTriggers[i];
+        }
+        return null;
+    }
+
+    private void addTrigger(char c, int index){
+        if (c<128) {
+            asciiTriggers[c] = appendUnique(asciiTriggers[c], index);
+            return;
+        }
+        for (int i = 0; i < otherTriggerChars.length; i++) {
+            if (otherTriggerChars[i]==c) {
+                otherTriggers[i] = appendUnique(otherTriggers[i], index);
+                return;
+            }
+        }
+        final int n = otherTriggerChars.length;
+        otherTriggerChars = Arrays.copyOf(otherTriggerChars, n + 1);
+        otherTriggerChars[n] = c;
+        otherTriggers = Arrays.copyOf(otherTriggers, n + 1);
+        otherTriggers[n] = new int[]{index};
+    }
+
+    private static int[] appendUnique(int[] array, int value){
+        if (array==null)
+            return new int[]{value};
+        for (int existing : array) {
+            if (existing==value)
+                return array;
+        }
+        return append(array, value);
+    }
+
+    private static int[] append(int[] array, int value){
+        final int[] result = Arrays.copyOf(array, array.length + 1);
+        result[array.length] = value;
+        return result;
+    }
+
+    /**
+     * Work out the characters a match of pattern can start with. The result may contain
+     * characters that never start a match, that only costs an anchored attempt, but must not
+     * miss any.
+     * @param pattern
+     * @return the trigger characters, or null if any character might start a match
+     */
+    static char[] triggerChars(Pattern pattern){
+        final String regex = pattern.pattern();
+        final int flags = pattern.flags();
+        if (regex.length()==0)
+            return null;
+        if ((flags & Pattern.LITERAL)!=0)
+            return withCase(new char[]{regex.charAt(0)}, flags);
+        if ((flags & (Pattern.COMMENTS | Pattern.CANON_EQ))!=0 || hasTopLevelAlternation(regex))
+            return null;
+
+        final char[] first;
+        int next;
+        final char c = regex.charAt(0);
+        if (c=='\\') {
+            // Only escaped punctuation is a literal, \w \d \Q etc. are not
+            if (regex.length()<2 || Character.isLetterOrDigit(regex.charAt(1)))
+                return null;
+            first = new char[]{regex.charAt(1)};
+            next = 2;
+        } else if (c=='[') {
+            // A class of plain characters such as [#@]
+            final int close = regex.indexOf(']', 1);
+            if (close<2)
+                return null;
+            first = regex.substring(1, close).toCharArray();
+            for (char member : first) {
+                if (member=='\\' || member=='^' || member=='-' || member=='[' || member=='&')
+                    return null;
+            }
+            next = close + 1;
+        } else if ("()|.^$?*+{}".indexOf(c)>=0) {
+            return null;
+        } else {
+            first = new char[]{c};
+            next = 1;
+        }
+        // The first element must not be optional
+        if (next<regex.length() && "?*{".indexOf(regex.charAt(next))>=0)
+            return null;
+        return withCase(first, flags);
+    }
+
+    private static boolean hasTopLevelAlternation(String regex){
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            final char c = regex.charAt(i);
+            if (c=='\\') {
+                i++;
+            } else if (inClass) {
+                if (c==']')
+                    inClass = false;
+            } else if (c=='[') {
+                inClass = true;
+            } else if (c=='(') {
+                depth++;
+            } else if (c==')') {
+                depth--;
+            } else if (c=='|' && depth==0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Ignoring case, a character matches every other that has the same upper or lower case,
+     * not only its own upper, lower and title case: with UNICODE_CASE, and always on Android,
+     * the KELVIN SIGN matches k and the LONG S matches s. All of those are triggers. The
+     * case of a surrogate can't be worked out from the one char, so there are no triggers.
+     */
+    private static char[] withCase(char[] chars, int flags){
+        if ((flags & Pattern.CASE_INSENSITIVE)==0)
+            return chars;
+        final StringBuilder sb = new StringBuilder();
+        for (char c : chars) {
+            if (Character.isSurrogate(c))
+                return null;
+            final char upper = Character.toUpperCase(c);
+            final char lower = Character.toLowerCase(c);
+            final char folded = Character.toLowerCase(upper);
+            sb.append(c);
+            for (int other = Character.MIN_VALUE; other <= Character.MAX_VALUE; other++) {
+                final char o = (char) other;
+                if (o!=c && (Character.toUpperCase(o)==upper ||
+                        Character.toLowerCase(o)==lower ||
+                        Character.toLowerCase(Character.toUpperCase(o))==folded))
+                    sb.append(o);
+            }
+        }
+        return sb.toString().toCharArray();
+    }
+
+    /**
+     * Receives the matches found by
+     * {@link flipagram.android.text.watcher.pattern.MultiPatternMatcher#find}. Matches of one
+     * pattern are reported in order, but may be interleaved with those of other patterns.
+     */
+    public interface OnMatchListener {
+        void onMatch(int index, int matchStart, int matchEnd);
+    }
+}
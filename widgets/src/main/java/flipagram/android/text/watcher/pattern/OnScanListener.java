@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.text.watcher.pattern;
+
+/**
+ * Told about each rescan of a watcher, see
+ * {@link flipagram.android.text.watcher.pattern.PatternCharacterStyleTextWatcher#setOnScanListener}
+ * and {@link flipagram.android.text.watcher.pattern.PatternCallbackTextWatcher#setOnScanListener}.
+ * Called on the main thread, so implementations must be quick.
+ * {@link flipagram.android.text.watcher.pattern.ScanMetrics} keeps rolling percentiles.
+ */
+public interface OnScanListener {
+    /**
+     * @param scanNanos time spent matching and updating spans
+     * @param charsScanned the length of the rescanned regions
+     * @param matches the matches found in them
+     * @param spansAdded
+     * @param spansRemoved
+     */
+    void onScan(long scanNanos, int charsScanned, int matches, int spansAdded, int spansRemoved);
+}
@@ -16,14 +16,20 @@
 package flipagram.android.text.watcher.pattern;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.widget.EditText;
 
+import flipagram.android.text.watcher.pattern.PatternCharacterStyleTextWatcher.PatternCharacterStyle;
+
 /**
  * A {@link android.text.TextWatcher} that calls the matching
  * {@link flipagram.android.text.watcher.pattern.PatternCallbackTextWatcher.Callback}
@@ -34,8 +40,37 @@ public class PatternCallbackTextWatcher implements TextWatcher {
 
     private final EditText editText;
     private int cursorPosition;
+    private int maxMatchLength;
 
     private List<PatternCallback> patternCallbacks = new ArrayList<PatternCallback>();
+    // The set the patterns start with, if any
+    private PatternSet patternSet;
+
+    private MultiPatternMatcher multiPatternMatcher;
+    private final TextWindow textWindow = new TextWindow();
+    private final TriggerPrefilter prefilter = new TriggerPrefilter();
+    private final MatchList found = new MatchList();
+
+    // Every match in the text, rebuilt from scratch when stale
+    private final MatchIndex matchIndex = new MatchIndex();
+    private boolean indexStale = true;
+    private int editStart = -1;
+    private int editEnd = -1;
+
+    private OnScanListener onScanListener;
+
+    private boolean changesOnly;
+    // By pattern, the match last reported in changes only mode, or a start of -1
+    private int[] reportedStart = new int[0];
+    private int[] reportedEnd = new int[0];
+    private String[] reportedText = new String[0];
+    private long debounceMillis;
+    private Handler handler;
+    private final Runnable dispatcher = new Runnable() {
+        @Override public void run() {
+            dispatch(editText.getText());
+        }
+    };
 
     /**
      * Create a new {@link flipagram.android.text.watcher.pattern.PatternCallbackTextWatcher} and
@@ -59,24 +94,375 @@ public class PatternCallbackTextWatcher implements TextWatcher {
         return this;
     }
 
+    /**
+     * Add the patterns of a registered {@link flipagram.android.text.watcher.pattern.PatternSet},
+     * all calling back the same {@link flipagram.android.text.watcher.pattern.PatternCallbackTextWatcher.PatternSetCallback}.
+     * It is told which of the set's patterns matched, and noMatch is only called when none of
+     * them did. The patterns themselves are shared with the set rather than compiled again.
+     * @param patternSet
+     * @param callback
+     * @return this for chaining
+     */
+    public PatternCallbackTextWatcher addPatternSet(PatternSet patternSet, PatternSetCallback callback){
+        if (patternCallbacks.isEmpty())
+            this.patternSet = patternSet;
+        final SetCallbacks setCallbacks = new SetCallbacks(callback, patternSet.size());
+        for (int i = 0; i < patternSet.size(); i++) {
+            final PatternCharacterStyle patternCharacterStyle = patternSet.getPatternCharacterStyles().get(i);
+            final PatternCallback patternCallback = new PatternCallback(
+                patternCharacterStyle.pattern,
+                new SetCallbacks.Member(setCallbacks, i)
+            );
+            patternCallback.tokenizer = patternCharacterStyle.tokenizer;
+            patternCallback.triggers = patternCharacterStyle.triggers;
+            patternCallbacks.add(patternCallback);
+        }
+        return this;
+    }
+
+    /**
+     * Only look for matches within maxMatchLength characters either side of the cursor, so
+     * that the cost of each keystroke depends on the length of a token rather than the length of
+     * the text. A {@link flipagram.android.text.watcher.pattern.PatternCallbackTextWatcher.PatternCallback}
+     * with its own maxMatchLength overrides this default; all patterns are searched in the
+     * widest of the windows. Matches longer than the window are not found, so this suits
+     * patterns such as hashtags and mentions that start with a prefix.
+     * @param maxMatchLength the longest match expected, or 0 to scan the whole text
+     * @return this for chaining
+     */
+    public PatternCallbackTextWatcher setMaxMatchLength(int maxMatchLength){
+        this.maxMatchLength = maxMatchLength;
+        return this;
+    }
+
+    /**
+     * Report the time each rescan takes and how much text it covered.
+     * @param onScanListener a {@link flipagram.android.text.watcher.pattern.ScanMetrics}, or null
+     * @return this for chaining
+     */
+    public PatternCallbackTextWatcher setOnScanListener(OnScanListener onScanListener){
+        this.onScanListener = onScanListener;
+        return this;
+    }
+
+    /**
+     * Only call back when the match at the cursor changes: onMatch when a match starts or its
+     * range or text changes, and noMatch once when it ends. Without this both are called on
+     * every keystroke.
+     * @param changesOnly
+     * @return this for chaining
+     */
+    public PatternCallbackTextWatcher setChangesOnly(boolean changesOnly){
+        this.changesOnly = changesOnly;
+        Arrays.fill(reportedStart, -1);
+        Arrays.fill(reportedText, null);
+        return this;
+    }
+
+    /**
+     * Wait until the text hasn't changed for delayMillis before calling back, on the main thread,
+     * so that a lookup made by the callback runs once per word typed rather than once per
+     * character.
+     * @param delayMillis 0 to call back from afterTextChanged
+     * @return this for chaining
+     */
+    public PatternCallbackTextWatcher setDebounce(long delayMillis){
+        this.debounceMillis = delayMillis;
+        if (delayMillis>0 && handler==null)
+            handler = new Handler(Looper.getMainLooper());
+        if (delayMillis<=0 && handler!=null)
+            handler.removeCallbacks(dispatcher);
+        return this;
+    }
+
+    /**
+     * @return how often patterns were skipped because none of their triggers were near the
+     * cursor. See {@link flipagram.android.text.watcher.pattern.PatternCallbackTextWatcher.PatternCallback#setTriggers}
+     */
+    public PrefilterStats getPrefilterStats(){
+        return prefilter.getStats();
+    }
+
     @Override public void beforeTextChanged(CharSequence s, int start, int count, int after) {
         cursorPosition = editText.getSelectionStart();
     }
     @Override public void onTextChanged(CharSequence s, int start, int before, int count) {
         cursorPosition = Math.max(cursorPosition,editText.getSelectionStart());
+        matchIndex.textChanged(start, before, count);
+        // Nested edits (another watcher changing the text) widen the pending range
+        if (editStart<0) {
+            editStart = start;
+            editEnd = start + count;
+        } else {
+            editStart = Math.min(editStart, start);
+            editEnd = Math.max(editEnd + count - before, start + count);
+        }
     }
     @Override public void afterTextChanged(Editable s) {
-        for (PatternCallback patternCallback : patternCallbacks) {
-            Matcher matcher = patternCallback.pattern.matcher(s);
+        // One region wide enough for every pattern's window
+        int window = 0;
+        for (int i = 0; i < patternCallbacks.size(); i++) {
+            final PatternCallback patternCallback = patternCallbacks.get(i);
+            final int patternWindow = patternCallback.maxMatchLength>0 ?
+                patternCallback.maxMatchLength :
+                maxMatchLength;
+            if (patternWindow<=0) {
+                window = 0;
+                break;
+            }
+            window = Math.max(window, patternWindow);
+        }
+        getMultiPatternMatcher();
+        // The window around the cursor, and around the edit so the index stays up to date
+        int regionStart = 0;
+        int regionEnd = s.length();
+        if (window>0 && !indexStale) {
+            final int from = editStart<0 ? cursorPosition : Math.min(editStart, cursorPosition);
+            final int to = editStart<0 ? cursorPosition : Math.max(editEnd, cursorPosition);
+            regionStart = Math.max(0, Math.min(from, regionEnd) - window);
+            regionEnd = Math.min(regionEnd, to + window);
+        }
+        editStart = -1;
+        editEnd = -1;
+
+        // Nothing is kept between edits, matches broken up by one were dropped from the index
+        prefilter.rescanned();
+        rescan(s, regionStart, regionEnd, true);
+
+        if (debounceMillis>0) {
+            handler.removeCallbacks(dispatcher);
+            handler.postDelayed(dispatcher, debounceMillis);
+        } else {
+            dispatch(s);
+        }
+    }
+
+    /**
+     * Call back with the matches of the last rescan containing the cursor, a pattern at a time
+     * in the order they were added: onMatch for each of its matches, or else noMatch.
+     */
+    private void dispatch(CharSequence s){
+        if (changesOnly) {
+            dispatchChanges(s);
+            return;
+        }
+        for (int i = 0; i < patternCallbacks.size(); i++) {
+            final Callback callback = patternCallbacks.get(i).callback;
             int matches = 0;
-            while(matcher.find()){
-                if (matcher.start()<=cursorPosition && matcher.end()>=cursorPosition) {
+            for (int m = 0; m < found.size(); m++) {
+                if (found.index(m)==i && found.start(m)<=cursorPosition && found.end(m)>=cursorPosition) {
                     matches++;
-                    patternCallback.callback.onMatch(matcher.start(), matcher.end());
+                    callback.onMatch(found.start(m), found.end(m));
                 }
             }
             if (matches==0)
-                patternCallback.callback.noMatch();
+                callback.noMatch();
+        }
+        endSetCallbacks();
+    }
+
+    private void dispatchChanges(CharSequence s){
+        final int n = patternCallbacks.size();
+        if (reportedStart.length<n) {
+            final int old = reportedStart.length;
+            reportedStart = Arrays.copyOf(reportedStart, n);
+            reportedEnd = Arrays.copyOf(reportedEnd, n);
+            reportedText = Arrays.copyOf(reportedText, n);
+            Arrays.fill(reportedStart, old, n, -1);
+        }
+        for (int i = 0; i < n; i++) {
+            // The first match of the pattern containing the cursor
+            int start = -1;
+            int end = -1;
+            for (int m = 0; m < found.size() && start<0; m++) {
+                if (found.index(m)==i && found.start(m)<=cursorPosition && found.end(m)>=cursorPosition) {
+                    start = found.start(m);
+                    end = found.end(m);
+                }
+            }
+            final Callback callback = patternCallbacks.get(i).callback;
+            if (start<0) {
+                if (reportedStart[i]>=0) {
+                    reportedStart[i] = -1;
+                    reportedText[i] = null;
+                    callback.noMatch();
+                }
+            } else if (start!=reportedStart[i] || end!=reportedEnd[i] ||
+                    !regionEquals(s, start, reportedText[i])) {
+                reportedStart[i] = start;
+                reportedEnd[i] = end;
+                reportedText[i] = s.subSequence(start, end).toString();
+                callback.onMatch(start, end);
+            }
+        }
+        endSetCallbacks();
+    }
+
+    /**
+     * Tell the callbacks of pattern sets none of whose patterns match any more.
+     */
+    private void endSetCallbacks(){
+        for (int i = 0; i < patternCallbacks.size(); i++) {
+            final Callback callback = patternCallbacks.get(i).callback;
+            if (callback instanceof SetCallbacks.Member)
+                ((SetCallbacks.Member) callback).setCallbacks.end();
+        }
+    }
+
+    private static boolean regionEquals(CharSequence s, int start, String text){
+        if (start + text.length()>s.length())
+            return false;
+        for (int i = 0; i < text.length(); i++) {
+            if (s.charAt(start + i)!=text.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Find the matches within the region and bring the index up to date with them.
+     * @param prefilter whether patterns without a trigger in the region can be skipped
+     */
+    private void rescan(CharSequence s, int regionStart, int regionEnd, boolean prefilter){
+        final long startNanos = onScanListener!=null ? System.nanoTime() : 0;
+        find(s, regionStart, regionEnd, prefilter);
+        if (onScanListener!=null)
+            onScanListener.onScan(System.nanoTime() - startNanos, regionEnd - regionStart, found.size(), 0, 0);
+    }
+
+    private void find(CharSequence s, int regionStart, int regionEnd, boolean prefilter){
+        final MultiPatternMatcher matcher = getMultiPatternMatcher();
+        textWindow.copy(s, regionStart, regionEnd);
+        final int offset = textWindow.getOffset();
+        boolean[] skip = null;
+        found.clear();
+        if (prefilter) {
+            skip = this.prefilter.getSkip();
+            if (this.prefilter.filter(textWindow, regionStart - offset, regionEnd - offset)==0) {
+                // None of the triggers anywhere in the text, so an index with no matches is right
+                if (regionStart==0 && regionEnd==s.length())
+                    indexStale = false;
+                return;
+            }
+        }
+        matcher.find(textWindow, regionStart - offset, regionEnd - offset, regionEnd - offset, skip, found);
+        found.shift(offset);
+        for (int i = 0; i < matchIndex.patterns(); i++) {
+            // A skipped pattern's matches in the region are still right
+            if (skip==null || !skip[i])
+                matchIndex.replace(i, regionStart, regionEnd, found);
+        }
+        if (regionStart==0 && regionEnd==s.length())
+            indexStale = false;
+    }
+
+    /**
+     * The match containing position, or ending at it as when the cursor is at the end of a
+     * word. Matches are kept up to date as the text is edited, so this is a binary search rather
+     * than a rescan. With a maxMatchLength, the index only holds matches within that length of
+     * the edits made so far, plus those found by a full scan of the text when the patterns
+     * changed.
+     * @param position
+     * @return the match of the first pattern containing position, or null if there is none
+     */
+    public Match matchAt(int position){
+        ensureIndex();
+        for (int index = 0; index < matchIndex.patterns(); index++) {
+            final int i = matchIndex.matchAt(index, position);
+            if (i>=0)
+                return new Match(patternCallbacks.get(index), matchIndex.start(index, i), matchIndex.end(index, i));
+        }
+        return null;
+    }
+
+    /**
+     * The matches overlapping or touching the range, for instance the current selection.
+     * @see #matchAt(int)
+     * @param start
+     * @param end
+     * @return the matches of every pattern, sorted by start
+     */
+    public List<Match> matchesIn(int start, int end){
+        ensureIndex();
+        final List<Match> matches = new ArrayList<Match>();
+        for (int index = 0; index < matchIndex.patterns(); index++) {
+            final PatternCallback patternCallback = patternCallbacks.get(index);
+            final int size = matchIndex.size(index);
+            for (int i = matchIndex.firstEndingAtOrAfter(index, start);
+                 i < size && matchIndex.start(index, i)<=end; i++) {
+                matches.add(new Match(patternCallback, matchIndex.start(index, i), matchIndex.end(index, i)));
+            }
+        }
+        Collections.sort(matches, Match.BY_START);
+        return matches;
+    }
+
+    private void ensureIndex(){
+        getMultiPatternMatcher();
+        if (indexStale && editText!=null)
+            rescan(editText.getText(), 0, editText.getText().length(), false);
+    }
+
+    /**
+     * @return a {@link flipagram.android.text.watcher.pattern.MultiPatternMatcher} of the current
+     * patterns, rebuilt if they changed since it was last used
+     */
+    private MultiPatternMatcher getMultiPatternMatcher(){
+        boolean stale = multiPatternMatcher==null ||
+            multiPatternMatcher.size()!=patternCallbacks.size();
+        for (int i = 0; !stale && i < patternCallbacks.size(); i++) {
+            final PatternCallback patternCallback = patternCallbacks.get(i);
+            stale = multiPatternMatcher.getTokenizer(i)!=patternCallback.tokenizer ||
+                patternCallback.tokenizer==null && multiPatternMatcher.getPattern(i)!=patternCallback.pattern ||
+                prefilter.getDeclared(i)!=patternCallback.triggers;
+        }
+        if (stale) {
+            prefilter.clear();
+            matchIndex.reset(patternCallbacks.size());
+            indexStale = true;
+            // Patterns starting with those of the pattern set start from its matcher
+            int shared = patternSet!=null && patternSet.size()<=patternCallbacks.size() ? patternSet.size() : 0;
+            for (int i = 0; i < shared; i++) {
+                final PatternCallback patternCallback = patternCallbacks.get(i);
+                if (!patternSet.isAt(i, patternCallback.pattern, patternCallback.tokenizer))
+                    shared = 0;
+            }
+            multiPatternMatcher = shared>0 ? patternSet.newMatcher() : new MultiPatternMatcher();
+            for (int i = 0; i < patternCallbacks.size(); i++) {
+                final PatternCallback patternCallback = patternCallbacks.get(i);
+                if (i>=shared && patternCallback.tokenizer!=null)
+                    multiPatternMatcher.add(patternCallback.tokenizer);
+                else if (i>=shared)
+                    multiPatternMatcher.add(patternCallback.pattern);
+                prefilter.add(patternCallback.triggers, patternCallback.tokenizer, patternCallback.pattern);
+            }
+        }
+        return multiPatternMatcher;
+    }
+
+    /**
+     * A match found by the watcher, see
+     * {@link flipagram.android.text.watcher.pattern.PatternCallbackTextWatcher#matchAt}.
+     */
+    public static class Match {
+        static final Comparator<Match> BY_START = new Comparator<Match>() {
+            @Override public int compare(Match lhs, Match rhs) {
+                return lhs.start<rhs.start ? -1 : (lhs.start==rhs.start ? 0 : 1);
+            }
+        };
+
+        public final PatternCallback patternCallback;
+        public final int start;
+        public final int end;
+
+        Match(PatternCallback patternCallback, int start, int end){
+            this.patternCallback = patternCallback;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override public String toString() {
+            return "Match{" + patternCallback.pattern + " " + start + "-" + end + "}";
         }
     }
 
@@ -90,16 +476,121 @@ public class PatternCallbackTextWatcher implements TextWatcher {
     }
 
     /**
-     * Associate a {@link java.util.regex.Pattern} with a
+     * Called back for the patterns of a {@link flipagram.android.text.watcher.pattern.PatternSet},
+     * see {@link flipagram.android.text.watcher.pattern.PatternCallbackTextWatcher#addPatternSet}
+     */
+    public interface PatternSetCallback {
+        /**
+         * @param index the index of the pattern in the set
+         * @param matchStart
+         * @param matchEnd
+         */
+        void onMatch(int index, int matchStart, int matchEnd);
+        /**
+         * None of the patterns of the set match
+         */
+        void noMatch();
+    }
+
+    /**
+     * Funnels the callbacks of a set's patterns into its one
+     * {@link flipagram.android.text.watcher.pattern.PatternCallbackTextWatcher.PatternSetCallback}.
+     * Each pattern's noMatch is held back until all of them were called back, and only passed on
+     * if none of them match.
+     */
+    private static class SetCallbacks {
+        private final PatternSetCallback callback;
+        private final boolean[] matching;
+        private boolean noMatchPending;
+
+        SetCallbacks(PatternSetCallback callback, int size){
+            this.callback = callback;
+            this.matching = new boolean[size];
+        }
+
+        void end(){
+            if (!noMatchPending)
+                return;
+            noMatchPending = false;
+            for (boolean match : matching) {
+                if (match)
+                    return;
+            }
+            callback.noMatch();
+        }
+
+        static class Member implements Callback {
+            final SetCallbacks setCallbacks;
+            private final int index;
+
+            Member(SetCallbacks setCallbacks, int index){
+                this.setCallbacks = setCallbacks;
+                this.index = index;
+            }
+
+            @Override public void onMatch(int matchStart, int matchEnd) {
+                setCallbacks.matching[index] = true;
+                setCallbacks.callback.onMatch(index, matchStart, matchEnd);
+            }
+            @Override public void noMatch() {
+                setCallbacks.matching[index] = false;
+                setCallbacks.noMatchPending = true;
+            }
+        }
+    }
+
+    /**
+     * Associate a {@link java.util.regex.Pattern}, or a
+     * {@link flipagram.android.text.watcher.pattern.SocialTokenizer}, with a
      * {@link flipagram.android.text.watcher.pattern.PatternCallbackTextWatcher.Callback}.
      */
     public static class PatternCallback {
         public Pattern pattern;
         public Callback callback;
+        /**
+         * The longest match expected around the cursor, or 0 to use the watcher's default.
+         * See {@link flipagram.android.text.watcher.pattern.PatternCallbackTextWatcher#setMaxMatchLength}
+         */
+        public int maxMatchLength;
+        /**
+         * When not null, used instead of the pattern
+         */
+        public SocialTokenizer tokenizer;
+        /**
+         * See {@link #setTriggers}
+         */
+        public String[] triggers;
 
         public PatternCallback(Pattern pattern, Callback callback){
+            this(pattern, callback, 0);
+        }
+
+        public PatternCallback(Pattern pattern, Callback callback, int maxMatchLength){
             this.pattern = pattern;
             this.callback = callback;
+            this.maxMatchLength = maxMatchLength;
+        }
+
+        public PatternCallback(SocialTokenizer tokenizer, Callback callback){
+            this(tokenizer, callback, 0);
+        }
+
+        public PatternCallback(SocialTokenizer tokenizer, Callback callback, int maxMatchLength){
+            this(tokenizer.pattern, callback, maxMatchLength);
+            this.tokenizer = tokenizer;
+        }
+
+        /**
+         * Declare strings, such as <code>#</code> or <code>http</code>, one of which every match
+         * contains. The pattern isn't searched for when none of them are around the cursor.
+         * Without them the first characters of the pattern, where they can be worked out, are
+         * used instead.
+         * @param triggers matched exactly, so list each case that can occur
+         * @return this for chaining
+         */
+        public PatternCallback setTriggers(String... triggers){
+            this.triggers = triggers;
+            return this;
         }
     }
 }
@@ -16,14 +16,26 @@
 package flipagram.android.text.watcher.pattern;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.regex.Matcher;
+import java.util.concurrent.Executor;
 import java.util.regex.Pattern;
 
+import android.annotation.TargetApi;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Editable;
+import android.text.Layout;
 import android.text.Spanned;
+import android.text.TextPaint;
 import android.text.TextWatcher;
 import android.text.style.CharacterStyle;
+import android.text.style.MetricAffectingSpan;
+import android.view.Choreographer;
+import android.view.ViewTreeObserver;
 import android.widget.EditText;
 
 /**
@@ -33,12 +45,103 @@ import android.widget.EditText;
  * must be added to define the {@link java.util.regex.Pattern} within the text and the associated
  * {@link android.text.style.CharacterStyle}. Because this {@link android.text.TextWatcher} modifies
  * the text within the {@link android.widget.EditText}, it should be the last one in any chain.
+ * <p>
+ * The watcher only ever removes the spans it added itself. Each rescan reconciles those spans
+ * with the current matches. Patterns sharing a {@link android.text.style.CharacterStyle} share a
+ * style, and the matches of one style that overlap or touch are covered by a single span.
+ * Matches with anything in between, even a space, keep a span each.
+ * <p>
+ * Once warmed up, matchers, spans and the bookkeeping arrays are all reused so that a keystroke
+ * doesn't allocate, except that on Android {@link java.util.regex.Matcher} copies the text it
+ * is reset with. Use {@link flipagram.android.text.watcher.pattern.SocialTokenizer}s to avoid
+ * that too. Matching runs over a {@link flipagram.android.text.watcher.pattern.TextWindow}, a
+ * copy of the rescanned region, rather than the {@link android.text.Editable} itself.
  */
 public class PatternCharacterStyleTextWatcher implements TextWatcher {
 
     private final EditText editText;
 
     private List<PatternCharacterStyle> patternCharacterStyles = new ArrayList<PatternCharacterStyle>();
+    // The set the patterns start with, if any
+    private PatternSet patternSet;
+
+    private Incremental incremental = Incremental.OFF;
+    private int editStart = -1;
+    private int editEnd = -1;
+
+    // The spans of each style, by style id, in text order. The spans of one style never overlap
+    // so edits can't reorder them, and a rescan finds those in its region by binary search.
+    // Spans the Editable dropped are pruned when a rescan comes across them.
+    private PatternSpan[][] spans = new PatternSpan[0][];
+    private int[] spanCounts = new int[0];
+    // Spans still to be sorted into the index, after the styles or the Editable changed
+    private final ArrayList<PatternSpan> unindexed = new ArrayList<PatternSpan>();
+    private boolean indexStale;
+    private Spanned indexedText;
+    // Removed spans, reused rather than allocating new ones
+    private final ArrayList<PatternSpan> pool = new ArrayList<PatternSpan>();
+    private static final int MAX_POOL_SIZE = 32;
+
+    // The distinct CharacterStyles, by identity, and the index of each pattern's style in them,
+    // -1 for a pattern without a style
+    private CharacterStyle[] styles = new CharacterStyle[0];
+    private int[] styleIds = new int[0];
+    private final StyleRuns runs = new StyleRuns();
+
+    // Reused between rescans: the spans of one style within the rescanned region
+    private PatternSpan[] owned = new PatternSpan[16];
+    private int[] ownedStart = new int[16];
+    private int[] ownedEnd = new int[16];
+    private int ownedCount;
+    // Reused between rescans: the index entries replacing those of the region
+    private PatternSpan[] indexed = new PatternSpan[16];
+    private int indexedCount;
+    private int spliceStart;
+    private int spliceEnd;
+
+    private MultiPatternMatcher multiPatternMatcher;
+    private final MatchList matches = new MatchList();
+    private final TextWindow textWindow = new TextWindow();
+    private final TriggerPrefilter prefilter = new TriggerPrefilter();
+
+    private boolean batchEdits;
+    private boolean inBatchEdit;
+
+    private int sliceMinLength;
+    private long frameBudgetNanos;
+    // What is left of a time sliced rescan, or -1
+    private int sliceStart = -1;
+    private int sliceEnd = -1;
+    private Editable slicedText;
+    private FrameScheduler frameScheduler;
+    // Rescanned at a time, give or take a boundary
+    private static final int SLICE_LENGTH = 2048;
+
+    // Lines either side of the screen to style, or -1 to style all of the text
+    private int viewportMargin = -1;
+    // The styled part of the text in viewport mode
+    private int styledStart;
+    private int styledEnd;
+    private final Rect visibleRect = new Rect();
+    private final ViewTreeObserver.OnPreDrawListener viewportListener = new ViewTreeObserver.OnPreDrawListener() {
+        @Override public boolean onPreDraw() {
+            updateViewport();
+            return true;
+        }
+    };
+    private boolean[] noSkip = new boolean[0];
+
+    private OnScanListener onScanListener;
+    // What the current scan did, for the listener
+    private int scanChars;
+    private int scanMatches;
+    private int spansAdded;
+    private int spansRemoved;
+
+    private Executor executor;
+    private Handler mainHandler;
+    // Bumped on every edit so that background results for older text can be recognized
+    private int generation;
 
     public PatternCharacterStyleTextWatcher(EditText editText){
         this.editText = editText;
@@ -55,32 +158,987 @@ public class PatternCharacterStyleTextWatcher implements TextWatcher {
         return this;
     }
 
-    @Override public void onTextChanged(CharSequence s, int start, int before, int count) { }
-    @Override public void beforeTextChanged(CharSequence s, int start, int count, int after) { }
+    /**
+     * Add the patterns of a registered {@link flipagram.android.text.watcher.pattern.PatternSet}.
+     * They are shared with the set rather than copied. Patterns without a
+     * {@link android.text.style.CharacterStyle} keep their place but are never looked for.
+     * @param patternSet
+     * @return this for chaining
+     */
+    public PatternCharacterStyleTextWatcher addPatternSet(PatternSet patternSet){
+        if (patternCharacterStyles.isEmpty())
+            this.patternSet = patternSet;
+        patternCharacterStyles.addAll(patternSet.getPatternCharacterStyles());
+        return this;
+    }
+
+    /**
+     * Only rescan the text around each edit rather than the whole
+     * {@link android.text.Editable}. Spans outside of the rescanned region are left alone.
+     * See {@link flipagram.android.text.watcher.pattern.PatternCharacterStyleTextWatcher.Incremental}
+     * for the restrictions each mode places on the {@link java.util.regex.Pattern}s.
+     * @param incremental
+     * @return this for chaining
+     */
+    public PatternCharacterStyleTextWatcher setIncremental(Incremental incremental){
+        this.incremental = incremental;
+        return this;
+    }
+
+    /**
+     * Apply all of the span changes of a rescan inside a single
+     * {@link android.widget.TextView#beginBatchEdit()} / {@link android.widget.TextView#endBatchEdit()}
+     * so the {@link android.widget.EditText} is updated once per keystroke rather than once per
+     * span. The batch is only started if the rescan changes any spans.
+     * @param batchEdits
+     * @return this for chaining
+     */
+    public PatternCharacterStyleTextWatcher setBatchEdits(boolean batchEdits){
+        this.batchEdits = batchEdits;
+        return this;
+    }
+
+    /**
+     * Rescan edits of at least minLength characters, such as a large paste, a slice at a time
+     * over the following frames rather than all at once in afterTextChanged. Each frame
+     * rescans for up to frameBudgetMillis, so the text is styled progressively while the UI
+     * stays responsive. Slices end at the boundaries of the
+     * {@link flipagram.android.text.watcher.pattern.PatternCharacterStyleTextWatcher.Incremental}
+     * mode, line breaks when it is OFF, and patterns must not match across them. Edits made in
+     * the meantime are rescanned as usual and the slices still to come move along with the text,
+     * or are dropped with it. Not used with an executor.
+     * @param minLength the shortest edit to slice, or 0 to never slice
+     * @param frameBudgetMillis how long to rescan for each frame
+     * @return this for chaining
+     */
+    public PatternCharacterStyleTextWatcher setTimeSlicing(int minLength, int frameBudgetMillis){
+        this.sliceMinLength = minLength;
+        this.frameBudgetNanos = frameBudgetMillis * 1000000L;
+        return this;
+    }
+
+    /**
+     * Only style the lines on screen, and marginLines either side of them, rather than the whole
+     * text. As the {@link android.widget.EditText}, or a scrolling parent, scrolls, newly visible
+     * lines are styled and spans that went far enough off screen are removed, so the number of
+     * spans and the work per edit depend on the size of the screen rather than of the text.
+     * Styled ranges are widened to the boundaries of the
+     * {@link flipagram.android.text.watcher.pattern.PatternCharacterStyleTextWatcher.Incremental}
+     * mode, line breaks when it is OFF, and patterns must not match across them.
+     * @param marginLines lines either side of the screen to style as well, or -1 to style all of
+     *                    the text
+     * @return this for chaining
+     */
+    public PatternCharacterStyleTextWatcher setViewportMargin(int marginLines){
+        if (editText==null)
+            return this;
+        final boolean wasViewport = viewportMargin>=0;
+        viewportMargin = marginLines;
+        if (marginLines>=0 && !wasViewport) {
+            // Anything might be styled so far
+            styledStart = 0;
+            styledEnd = editText.getText().length();
+            editText.getViewTreeObserver().addOnPreDrawListener(viewportListener);
+        } else if (marginLines<0 && wasViewport) {
+            editText.getViewTreeObserver().removeOnPreDrawListener(viewportListener);
+            // Style the rest of the text
+            final Editable s = editText.getText();
+            rescanRange(s, 0, styledStart);
+            rescanRange(s, styledEnd, s.length());
+        }
+        return this;
+    }
+
+    /**
+     * Match on the given {@link java.util.concurrent.Executor} rather than on the main thread.
+     * The text is copied, matched in the background and the resulting spans applied back on the
+     * main thread, unless the text was edited again in the meantime, in which case the result
+     * is dropped in favor of the newer one. Edits whose results are dropped are included in
+     * the next rescan, so nothing is left unstyled.
+     * @param executor the executor to match on, or null to match on the main thread
+     * @return this for chaining
+     */
+    public PatternCharacterStyleTextWatcher setExecutor(Executor executor){
+        this.executor = executor;
+        if (executor!=null && mainHandler==null)
+            mainHandler = new Handler(Looper.getMainLooper());
+        return this;
+    }
+
+    /**
+     * @return how often patterns were skipped because the edit was nowhere near their triggers.
+     * See {@link flipagram.android.text.watcher.pattern.PatternCharacterStyleTextWatcher.PatternCharacterStyle#setTriggers}
+     */
+    public PrefilterStats getPrefilterStats(){
+        return prefilter.getStats();
+    }
+
+    /**
+     * Report the time each rescan takes, how much text it covered and the spans it changed.
+     * Time sliced and background rescans are reported once their spans are applied.
+     * @param onScanListener a {@link flipagram.android.text.watcher.pattern.ScanMetrics}, or null
+     * @return this for chaining
+     */
+    public PatternCharacterStyleTextWatcher setOnScanListener(OnScanListener onScanListener){
+        this.onScanListener = onScanListener;
+        return this;
+    }
+
+    @Override public void onTextChanged(CharSequence s, int start, int before, int count) {
+        generation++;
+        if (sliceStart>=0)
+            sliceTextChanged(start, before, count);
+        if (viewportMargin>=0) {
+            styledStart = moveStart(styledStart, start, before, count);
+            styledEnd = moveEnd(styledEnd, start, before, count);
+        }
+        // Nested edits (another watcher changing the text) widen the pending range
+        if (editStart<0) {
+            editStart = start;
+            editEnd = start + count;
+        } else {
+            editStart = Math.min(editStart, start);
+            editEnd = Math.max(editEnd + count - before, start + count);
+        }
+    }
+    @Override public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        getMultiPatternMatcher();
+        prefilter.beforeTextChanged(s, start, count);
+    }
     @Override public void afterTextChanged(Editable s) {
-        for (PatternCharacterStyle patternCharacterStyle : patternCharacterStyles) {
-            Matcher matcher = patternCharacterStyle.pattern.matcher(s);
-            while(matcher.find()){
-                s.setSpan(
-                    CharacterStyle.wrap(patternCharacterStyle.characterStyle),
-                    matcher.start(),
-                    matcher.end(),
-                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        final long startNanos = beginScan();
+        int regionStart = 0;
+        int regionEnd = s.length();
+        if (incremental!=Incremental.OFF) {
+            // A nested afterTextChanged already rescanned this edit
+            if (editStart<0)
+                return;
+            regionStart = incremental.boundaryBefore(s, Math.min(editStart, regionEnd));
+            regionEnd = incremental.boundaryAfter(s, Math.min(editEnd, regionEnd));
+        }
+        if (viewportMargin>=0) {
+            // Off screen edits are styled once they scroll into view
+            final Incremental boundaries = getBoundaries();
+            regionStart = Math.max(regionStart, styledStart);
+            regionEnd = Math.min(regionEnd, styledEnd);
+            if (regionStart>=regionEnd) {
+                rescanned();
+                return;
+            }
+            regionStart = boundaries.boundaryBefore(s, regionStart);
+            regionEnd = Math.min(s.length(), boundaries.boundaryAfter(s, regionEnd - 1) + 1);
+            styledStart = Math.min(styledStart, regionStart);
+            styledEnd = Math.max(styledEnd, regionEnd);
+        }
+        final MultiPatternMatcher matcher = getMultiPatternMatcher();
+        if (sliceStart>=0)
+            slicedText = s;
+        if (sliceMinLength>0 && executor==null && editStart>=0 && editEnd - editStart>=sliceMinLength) {
+            // Handed over to the slices
+            rescanned();
+            slice(s, regionStart, regionEnd);
+            return;
+        }
+        // A background match needs a copy of its own, it outlives this keystroke
+        final TextWindow window = executor!=null ? new TextWindow() : textWindow;
+        window.copy(s, regionStart, regionEnd);
+        final int offset = window.getOffset();
+        if (prefilter.filter(window, regionStart - offset, regionEnd - offset)==0) {
+            // No pattern can have matched, before or after the edit
+            rescanned();
+            countScan(regionEnd - regionStart, 0);
+            endScan(startNanos);
+            return;
+        }
+        unskipSharedStyles(prefilter.getSkip());
+        if (executor!=null) {
+            // The pending range is only cleared once a result is applied
+            matchInBackground(s, window, regionStart, regionEnd, prefilter.getSkip().clone());
+            return;
+        }
+        rescanned();
+        if (sliceStart>=regionStart && sliceEnd<=regionEnd)
+            cancelSlices();
+
+        matches.clear();
+        find(matcher, window, regionStart, regionEnd, prefilter.getSkip(), matches);
+        applyMatches(s, regionStart, regionEnd, prefilter.getSkip(), matches);
+        countScan(regionEnd - regionStart, matches.size());
+        endScan(startNanos);
+    }
+
+    private void rescanned(){
+        editStart = -1;
+        editEnd = -1;
+        prefilter.rescanned();
+    }
+
+    private void matchInBackground(
+            final Editable s,
+            final TextWindow snapshot,
+            final int regionStart,
+            final int regionEnd,
+            final boolean[] skip
+    ){
+        final int snapshotGeneration = generation;
+        final MultiPatternMatcher matcher = getMultiPatternMatcher();
+        executor.execute(new Runnable() {
+            @Override public void run() {
+                final long findStart = System.nanoTime();
+                final MatchList found = new MatchList();
+                find(matcher, snapshot, regionStart, regionEnd, skip, found);
+                final long findNanos = System.nanoTime() - findStart;
+                mainHandler.post(new Runnable() {
+                    @Override public void run() {
+                        // The text changed since the snapshot, a newer result is on its way
+                        if (snapshotGeneration!=generation)
+                            return;
+                        // Backdated by the time spent matching, without the wait in between
+                        final long startNanos = beginScan() - findNanos;
+                        rescanned();
+                        applyMatches(s, regionStart, regionEnd, skip, found);
+                        countScan(regionEnd - regionStart, found.size());
+                        endScan(startNanos);
+                    }
+                });
             }
+        });
+    }
+
+    private void slice(Editable s, int regionStart, int regionEnd){
+        if (sliceStart>=0) {
+            regionStart = Math.min(regionStart, sliceStart);
+            regionEnd = Math.max(regionEnd, sliceEnd);
+        }
+        sliceStart = regionStart;
+        sliceEnd = regionEnd;
+        slicedText = s;
+        if (frameScheduler==null) {
+            frameScheduler = FrameScheduler.create(new Runnable() {
+                @Override public void run() {
+                    rescanSlices();
+                }
+            });
         }
+        frameScheduler.post();
+    }
+
+    /**
+     * Move what is left to slice along with an edit.
+     */
+    private void sliceTextChanged(int start, int before, int count){
+        sliceStart = moveStart(sliceStart, start, before, count);
+        sliceEnd = moveEnd(sliceEnd, start, before, count);
+        // Deleted before its turn came
+        if (sliceStart>=sliceEnd)
+            cancelSlices();
     }
 
     /**
-     * Associate a {@link java.util.regex.Pattern} with a
+     * @return where the start of a range ends up after count characters at start replaced before
+     */
+    private static int moveStart(int position, int start, int before, int count){
+        if (position>=start + before)
+            return position + count - before;
+        return position>start ? start : position;
+    }
+
+    /**
+     * @return where the end of a range ends up after count characters at start replaced before
+     */
+    private static int moveEnd(int position, int start, int before, int count){
+        if (position>=start + before)
+            return position + count - before;
+        return position>start ? start + count : position;
+    }
+
+    private void cancelSlices(){
+        sliceStart = -1;
+        sliceEnd = -1;
+        slicedText = null;
+        if (frameScheduler!=null)
+            frameScheduler.cancel();
+    }
+
+    /**
+     * Rescan slices until the frame budget runs out, then wait for the next frame.
+     */
+    private void rescanSlices(){
+        if (sliceStart<0)
+            return;
+        if (viewportMargin>=0) {
+            // Scrolled out of view in the meantime
+            sliceStart = Math.max(sliceStart, styledStart);
+            sliceEnd = Math.min(sliceEnd, styledEnd);
+            if (sliceStart>=sliceEnd) {
+                cancelSlices();
+                return;
+            }
+        }
+        final Editable s = slicedText;
+        final Incremental boundaries = getBoundaries();
+        final MultiPatternMatcher matcher = getMultiPatternMatcher();
+        final boolean[] skip = getNoSkip();
+        final long startNanos = beginScan();
+        final long deadline = System.nanoTime() + frameBudgetNanos;
+        do {
+            // The boundary ends this slice, so the next starts just after it
+            int end = sliceStart + SLICE_LENGTH;
+            if (end<sliceEnd)
+                end = Math.min(boundaries.boundaryAfter(s, end) + 1, sliceEnd);
+            else
+                end = sliceEnd;
+            textWindow.copy(s, sliceStart, end);
+            matches.clear();
+            find(matcher, textWindow, sliceStart, end, skip, matches);
+            applyMatches(s, sliceStart, end, skip, matches);
+            countScan(end - sliceStart, matches.size());
+            sliceStart = end;
+        } while(sliceStart<sliceEnd && System.nanoTime()<deadline);
+        endScan(startNanos);
+
+        if (sliceStart<sliceEnd)
+            frameScheduler.post();
+        else
+            cancelSlices();
+    }
+
+    /**
+     * Style the lines on screen, and the margin around them, and unstyle those no longer near it.
+     */
+    private void updateViewport(){
+        final Layout layout = editText.getLayout();
+        if (layout==null || !editText.getLocalVisibleRect(visibleRect))
+            return;
+        final Editable s = editText.getText();
+        final int top = visibleRect.top + editText.getScrollY() - editText.getTotalPaddingTop();
+        final int bottom = visibleRect.bottom + editText.getScrollY() - editText.getTotalPaddingTop();
+        final int firstLine = Math.max(0, layout.getLineForVertical(top) - viewportMargin);
+        final int lastLine = Math.min(layout.getLineCount() - 1, layout.getLineForVertical(bottom) + viewportMargin);
+        if (lastLine<firstLine)
+            return;
+        final Incremental boundaries = getBoundaries();
+        final int start = boundaries.boundaryBefore(s, Math.min(layout.getLineStart(firstLine), s.length()));
+        int end = Math.min(layout.getLineEnd(lastLine), s.length());
+        end = end>start ? Math.min(s.length(), boundaries.boundaryAfter(s, end - 1) + 1) : start;
+        if (start==styledStart && end==styledEnd)
+            return;
+
+        final long startNanos = beginScan();
+        if (end<=styledStart || start>=styledEnd) {
+            clearRange(s, styledStart, styledEnd);
+            rescanRange(s, start, end);
+        } else {
+            clearRange(s, styledStart, start);
+            clearRange(s, end, styledEnd);
+            rescanRange(s, start, styledStart);
+            rescanRange(s, styledEnd, end);
+        }
+        styledStart = start;
+        styledEnd = end;
+        endScan(startNanos);
+    }
+
+    /**
+     * Style the range now, on the main thread.
+     */
+    private void rescanRange(Editable s, int regionStart, int regionEnd){
+        if (regionStart>=regionEnd)
+            return;
+        textWindow.copy(s, regionStart, regionEnd);
+        matches.clear();
+        find(getMultiPatternMatcher(), textWindow, regionStart, regionEnd, getNoSkip(), matches);
+        applyMatches(s, regionStart, regionEnd, getNoSkip(), matches);
+        countScan(regionEnd - regionStart, matches.size());
+    }
+
+    /**
+     * @return the start time of a scan to report, or 0 without a listener
+     */
+    private long beginScan(){
+        scanChars = 0;
+        scanMatches = 0;
+        spansAdded = 0;
+        spansRemoved = 0;
+        return onScanListener!=null ? System.nanoTime() : 0;
+    }
+
+    private void countScan(int chars, int found){
+        scanChars += chars;
+        scanMatches += found;
+    }
+
+    private void endScan(long startNanos){
+        if (onScanListener!=null)
+            onScanListener.onScan(System.nanoTime() - startNanos, scanChars, scanMatches, spansAdded, spansRemoved);
+    }
+
+    /**
+     * Remove the spans in the range.
+     */
+    private void clearRange(Editable s, int regionStart, int regionEnd){
+        if (regionStart>=regionEnd)
+            return;
+        matches.clear();
+        applyMatches(s, regionStart, regionEnd, getNoSkip(), matches);
+    }
+
+    /**
+     * @return a mask skipping only the patterns without a style
+     */
+    private boolean[] getNoSkip(){
+        if (noSkip.length!=patternCharacterStyles.size())
+            getMultiPatternMatcher();
+        return noSkip;
+    }
+
+    /**
+     * @return where slices and styled ranges may end
+     */
+    private Incremental getBoundaries(){
+        return incremental==Incremental.OFF ? Incremental.PARAGRAPH : incremental;
+    }
+
+    /**
+     * Find the matches in the region of the text copied to window, at their positions in the
+     * text. A {@link flipagram.android.text.watcher.pattern.MultiPatternMatcher} isn't thread safe
+     * and background matches may still be running when the next one starts.
+     */
+    private static void find(
+            MultiPatternMatcher matcher,
+            TextWindow window,
+            int regionStart,
+            int regionEnd,
+            boolean[] skip,
+            MatchList found
+    ){
+        final int offset = window.getOffset();
+        synchronized (matcher) {
+            matcher.find(window, regionStart - offset, regionEnd - offset, regionEnd - offset, skip, found);
+        }
+        found.shift(offset);
+    }
+
+    /**
+     * Reconcile the spans within the region with the matches found there.
+     */
+    private void applyMatches(Editable s, int regionStart, int regionEnd, boolean[] skip, MatchList matches){
+        try {
+            reconcileSpans(s, regionStart, regionEnd, skip, matches);
+        } finally {
+            if (inBatchEdit) {
+                inBatchEdit = false;
+                editText.endBatchEdit();
+            }
+        }
+    }
+
+    private void reconcileSpans(Editable s, int regionStart, int regionEnd, boolean[] skip, MatchList matches){
+        if (indexStale || s!=indexedText)
+            reindex(s);
+        for (int styleId = 0; styleId < styles.length; styleId++) {
+            // Its spans in the region are still right
+            if (isSkipped(styleId, skip))
+                continue;
+            final CharacterStyle style = styles[styleId];
+            collectOwned(s, styleId, regionStart, regionEnd);
+            runs.collect(matches, styleIds, styleId);
+
+            int next = 0;
+            for (int r = 0; r < runs.size(); r++) {
+                final int start = runs.start(r);
+                final int end = runs.end(r);
+                // Anything before this run no longer matches
+                while(next<ownedCount && ownedStart[next]<start)
+                    removeSpan(s, owned[next++]);
+                if (next<ownedCount && ownedStart[next]==start) {
+                    // Keep the span, moving its end if the run grew or shrank
+                    if (ownedEnd[next]!=end)
+                        setSpan(s, owned[next], start, end);
+                    addIndexed(owned[next++]);
+                    // Drop duplicates left at the same start
+                    while(next<ownedCount && ownedStart[next]==start)
+                        removeSpan(s, owned[next++]);
+                } else {
+                    final PatternSpan span = obtainSpan(style);
+                    setSpan(s, span, start, end);
+                    addIndexed(span);
+                    spansAdded++;
+                }
+            }
+            while(next<ownedCount)
+                removeSpan(s, owned[next++]);
+            Arrays.fill(owned, 0, ownedCount, null);
+            splice(styleId);
+        }
+    }
+
+    /**
+     * @return whether every pattern of the style is skipped
+     */
+    private boolean isSkipped(int styleId, boolean[] skip){
+        for (int i = 0; i < styleIds.length; i++) {
+            if (styleIds[i]==styleId && (i>=skip.length || !skip[i]))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * A style's runs are rebuilt from the matches of all its patterns, so either all of them are
+     * looked for or none.
+     */
+    private void unskipSharedStyles(boolean[] skip){
+        for (int i = 0; i < styleIds.length; i++) {
+            if (skip[i] && styleIds[i]>=0 && !isSkipped(styleIds[i], skip)) {
+                for (int j = 0; j < styleIds.length; j++) {
+                    if (styleIds[j]==styleIds[i] && skip[j]) {
+                        skip[j] = false;
+                        prefilter.getStats().skipped--;
+                    }
+                }
+            }
+        }
+    }
+
+    private void setSpan(Editable s, Object span, int start, int end){
+        beginBatchEdit();
+        s.setSpan(span, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+
+    private void removeSpan(Editable s, PatternSpan span){
+        beginBatchEdit();
+        s.removeSpan(span);
+        spansRemoved++;
+        recycle(span);
+    }
+
+    private void recycle(PatternSpan span){
+        if (pool.size()<MAX_POOL_SIZE)
+            pool.add(span);
+    }
+
+    private void beginBatchEdit(){
+        if (batchEdits && !inBatchEdit && editText!=null) {
+            inBatchEdit = true;
+            editText.beginBatchEdit();
+        }
+    }
+
+    /**
+     * @return a {@link flipagram.android.text.watcher.pattern.MultiPatternMatcher} of the current
+     * patterns, rebuilt if they changed since it was last used
+     */
+    MultiPatternMatcher getMultiPatternMatcher(){
+        boolean stale = multiPatternMatcher==null ||
+            multiPatternMatcher.size()!=patternCharacterStyles.size();
+        for (int i = 0; !stale && i < patternCharacterStyles.size(); i++) {
+            final PatternCharacterStyle patternCharacterStyle = patternCharacterStyles.get(i);
+            stale = multiPatternMatcher.getTokenizer(i)!=patternCharacterStyle.tokenizer ||
+                patternCharacterStyle.tokenizer==null && multiPatternMatcher.getPattern(i)!=patternCharacterStyle.pattern ||
+                prefilter.getDeclared(i)!=patternCharacterStyle.triggers ||
+                getStyle(i)!=patternCharacterStyle.characterStyle;
+        }
+        if (stale) {
+            prefilter.clear();
+            buildStyles();
+            // Patterns starting with those of the pattern set start from its matcher
+            int shared = patternSet!=null && patternSet.size()<=patternCharacterStyles.size() ? patternSet.size() : 0;
+            for (int i = 0; i < shared; i++) {
+                final PatternCharacterStyle patternCharacterStyle = patternCharacterStyles.get(i);
+                if (!patternSet.isAt(i, patternCharacterStyle.pattern, patternCharacterStyle.tokenizer))
+                    shared = 0;
+            }
+            multiPatternMatcher = shared>0 ? patternSet.newMatcher() : new MultiPatternMatcher();
+            for (int i = 0; i < patternCharacterStyles.size(); i++) {
+                final PatternCharacterStyle patternCharacterStyle = patternCharacterStyles.get(i);
+                if (i>=shared && patternCharacterStyle.tokenizer!=null)
+                    multiPatternMatcher.add(patternCharacterStyle.tokenizer);
+                else if (i>=shared)
+                    multiPatternMatcher.add(patternCharacterStyle.pattern);
+                prefilter.add(
+                    patternCharacterStyle.triggers,
+                    patternCharacterStyle.tokenizer,
+                    patternCharacterStyle.pattern
+                );
+                if (styleIds[i]<0)
+                    prefilter.exclude(i);
+            }
+        }
+        return multiPatternMatcher;
+    }
+
+    /**
+     * @return the style of the pattern at index, null if it has none
+     */
+    private CharacterStyle getStyle(int index){
+        return styleIds[index]<0 ? null : styles[styleIds[index]];
+    }
+
+    /**
+     * Number the distinct CharacterStyles of the patterns.
+     */
+    private void buildStyles(){
+        // The spans are sorted into the new styles on the next rescan
+        for (int id = 0; id < spans.length; id++) {
+            for (int i = 0; i < spanCounts[id]; i++)
+                unindexed.add(spans[id][i]);
+        }
+        indexStale = true;
+        final int n = patternCharacterStyles.size();
+        styles = new CharacterStyle[n];
+        styleIds = new int[n];
+        noSkip = new boolean[n];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            final CharacterStyle characterStyle = patternCharacterStyles.get(i).characterStyle;
+            // Kept so that the indexes line up with those of a pattern set, but never matched
+            if (characterStyle==null) {
+                styleIds[i] = -1;
+                noSkip[i] = true;
+                continue;
+            }
+            int id = 0;
+            while(id<count && styles[id]!=characterStyle)
+                id++;
+            if (id==count)
+                styles[count++] = characterStyle;
+            styleIds[i] = id;
+        }
+        styles = Arrays.copyOf(styles, count);
+        spans = new PatternSpan[count][];
+        spanCounts = new int[count];
+        for (int id = 0; id < count; id++)
+            spans[id] = new PatternSpan[16];
+    }
+
+    /**
+     * Sort the spans waiting to be indexed, and if the text is new those of the index too, into
+     * the index of their style. Only happens when the patterns or the Editable change.
+     */
+    private void reindex(final Spanned s){
+        if (s!=indexedText) {
+            // setText() may have copied the spans into a new Editable
+            for (int id = 0; id < spans.length; id++) {
+                for (int i = 0; i < spanCounts[id]; i++)
+                    unindexed.add(spans[id][i]);
+                Arrays.fill(spans[id], 0, spanCounts[id], null);
+                spanCounts[id] = 0;
+            }
+        }
+        for (int u = unindexed.size() - 1; u >= 0; u--) {
+            final PatternSpan span = unindexed.get(u);
+            if (s.getSpanStart(span)<0) {
+                unindexed.remove(u);
+                recycle(span);
+                continue;
+            }
+            int id = 0;
+            while(id<styles.length && styles[id]!=span.getStyle())
+                id++;
+            // Spans of styles no longer in use wait for them to come back
+            if (id==styles.length)
+                continue;
+            unindexed.remove(u);
+            if (spanCounts[id]==spans[id].length)
+                spans[id] = Arrays.copyOf(spans[id], spanCounts[id] * 2);
+            spans[id][spanCounts[id]++] = span;
+        }
+        final Comparator<PatternSpan> byStart = new Comparator<PatternSpan>() {
+            @Override public int compare(PatternSpan lhs, PatternSpan rhs) {
+                return s.getSpanStart(lhs) - s.getSpanStart(rhs);
+            }
+        };
+        for (int id = 0; id < spans.length; id++)
+            Arrays.sort(spans[id], 0, spanCounts[id], byStart);
+        indexedText = s;
+        indexStale = false;
+    }
+
+    /**
+     * Gather the spans of the style overlapping the region, in text order. The index entries of
+     * the region, from spliceStart to spliceEnd, are replaced by splice() once the rescan is
+     * done. Spans that are no longer in the text are moved to the pool on the way.
+     */
+    private void collectOwned(Spanned s, int styleId, int regionStart, int regionEnd){
+        final PatternSpan[] index = spans[styleId];
+        final int count = spanCounts[styleId];
+        ownedCount = 0;
+        indexedCount = 0;
+        // The first span ending at or after the region start. Spans the Editable dropped have
+        // no position, so probe the closest one before them instead.
+        int lo = 0;
+        int hi = count;
+        while(lo<hi){
+            final int mid = (lo + hi) >>> 1;
+            int probe = mid;
+            int end = -1;
+            while(probe>=lo && (end = s.getSpanEnd(index[probe]))<0)
+                probe--;
+            if (probe>=lo && end>=regionStart)
+                hi = probe;
+            else
+                lo = mid + 1;
+        }
+        // Spans dropped along with deleted text sit where it was, next to the region
+        while(lo>0 && s.getSpanStart(index[lo-1])<0)
+            lo--;
+        spliceStart = lo;
+        int i = lo;
+        for (; i < count; i++) {
+            final PatternSpan span = index[i];
+            final int start = s.getSpanStart(span);
+            if (start<0) {
+                // Removed by the Editable when its text was deleted
+                recycle(span);
+                continue;
+            }
+            if (start>=regionEnd)
+                break;
+            final int end = s.getSpanEnd(span);
+            // Spans only touching the region belong to text that wasn't rescanned
+            if (end<=regionStart && start!=end) {
+                addIndexed(span);
+                continue;
+            }
+            if (ownedCount==owned.length) {
+                owned = Arrays.copyOf(owned, ownedCount * 2);
+                ownedStart = Arrays.copyOf(ownedStart, ownedCount * 2);
+                ownedEnd = Arrays.copyOf(ownedEnd, ownedCount * 2);
+            }
+            owned[ownedCount] = span;
+            ownedStart[ownedCount] = start;
+            ownedEnd[ownedCount] = end;
+            ownedCount++;
+        }
+        spliceEnd = i;
+    }
+
+    private void addIndexed(PatternSpan span){
+        if (indexedCount==indexed.length)
+            indexed = Arrays.copyOf(indexed, indexedCount * 2);
+        indexed[indexedCount++] = span;
+    }
+
+    /**
+     * Replace the index entries of the rescanned region with the spans now there.
+     */
+    private void splice(int styleId){
+        PatternSpan[] index = spans[styleId];
+        final int count = spanCounts[styleId];
+        final int newCount = count - (spliceEnd - spliceStart) + indexedCount;
+        if (newCount>index.length) {
+            index = Arrays.copyOf(index, Math.max(newCount, index.length * 2));
+            spans[styleId] = index;
+        }
+        if (newCount!=count) {
+            System.arraycopy(index, spliceEnd, index, spliceStart + indexedCount, count - spliceEnd);
+            if (newCount<count)
+                Arrays.fill(index, newCount, count, null);
+        }
+        System.arraycopy(indexed, 0, index, spliceStart, indexedCount);
+        Arrays.fill(indexed, 0, indexedCount, null);
+        spanCounts[styleId] = newCount;
+    }
+
+    /**
+     * @return a pooled span for style, or a new one
+     */
+    private PatternSpan obtainSpan(CharacterStyle style){
+        for (int i = pool.size() - 1; i >= 0; i--) {
+            final PatternSpan span = pool.get(i);
+            if (span.getStyle()==style) {
+                pool.remove(i);
+                return span;
+            }
+        }
+        return style instanceof MetricAffectingSpan ?
+            new MetricPatternSpan((MetricAffectingSpan) style) :
+            new CharacterPatternSpan(style);
+    }
+
+    /**
+     * Runs the next slice of a time sliced rescan on a later frame.
+     */
+    private abstract static class FrameScheduler {
+        final Runnable slice;
+
+        FrameScheduler(Runnable slice){
+            this.slice = slice;
+        }
+
+        abstract void post();
+        abstract void cancel();
+
+        static FrameScheduler create(Runnable slice){
+            if (Build.VERSION.SDK_INT>=Build.VERSION_CODES.JELLY_BEAN)
+                return new ChoreographerFrameScheduler(slice);
+            return new HandlerFrameScheduler(slice);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class ChoreographerFrameScheduler extends FrameScheduler implements Choreographer.FrameCallback {
+        ChoreographerFrameScheduler(Runnable slice){
+            super(slice);
+        }
+
+        @Override void post() {
+            Choreographer.getInstance().removeFrameCallback(this);
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+        @Override void cancel() {
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+        @Override public void doFrame(long frameTimeNanos) {
+            slice.run();
+        }
+    }
+
+    /**
+     * Choreographer is API 16, before that a frame is about 16ms
+     */
+    private static class HandlerFrameScheduler extends FrameScheduler implements Runnable {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        HandlerFrameScheduler(Runnable slice){
+            super(slice);
+        }
+
+        @Override void post() {
+            handler.removeCallbacks(this);
+            handler.postDelayed(this, 16);
+        }
+        @Override void cancel() {
+            handler.removeCallbacks(this);
+        }
+        @Override public void run() {
+            slice.run();
+        }
+    }
+
+    /**
+     * How far an edit is widened before it is rescanned.
+     */
+    public enum Incremental {
+        /**
+         * Rescan the whole text on every edit
+         */
+        OFF,
+        /**
+         * Rescan the lines touched by the edit. Patterns must not match across a line break.
+         */
+        PARAGRAPH,
+        /**
+         * Rescan the whitespace delimited tokens touched by the edit. Patterns must not match
+         * across whitespace, which holds for hashtags and mentions.
+         */
+        TOKEN;
+
+        int boundaryBefore(CharSequence s, int position){
+            while(position>0 && !isBoundary(s.charAt(position-1)))
+                position--;
+            return position;
+        }
+
+        int boundaryAfter(CharSequence s, int position){
+            final int length = s.length();
+            while(position<length && !isBoundary(s.charAt(position)))
+                position++;
+            return position;
+        }
+
+        private boolean isBoundary(char c){
+            return this==PARAGRAPH ? c=='\n' : Character.isWhitespace(c);
+        }
+    }
+
+    /**
+     * Associate a {@link java.util.regex.Pattern}, or a
+     * {@link flipagram.android.text.watcher.pattern.SocialTokenizer}, with a
      * {@link android.text.style.CharacterStyle}.
      */
     public static class PatternCharacterStyle {
         public Pattern pattern;
         public CharacterStyle characterStyle;
+        /**
+         * When not null, used instead of the pattern
+         */
+        public SocialTokenizer tokenizer;
+        /**
+         * See {@link #setTriggers}
+         */
+        public String[] triggers;
 
         public PatternCharacterStyle(Pattern pattern, CharacterStyle characterStyle){
             this.pattern = pattern;
             this.characterStyle = characterStyle;
         }
+
+        public PatternCharacterStyle(SocialTokenizer tokenizer, CharacterStyle characterStyle){
+            this(tokenizer.pattern, characterStyle);
+            this.tokenizer = tokenizer;
+        }
+
+        /**
+         * Declare strings, such as <code>#</code> or <code>http</code>, one of which every match
+         * contains. The pattern is skipped on edits that neither touch nor leave one of them in
+         * the rescanned region. Without them the first characters of the pattern, where they
+         * can be worked out, are used instead.
+         * @param triggers matched exactly, so list each case that can occur
+         * @return this for chaining
+         */
+        public PatternCharacterStyle setTriggers(String... triggers){
+            this.triggers = triggers;
+            return this;
+        }
+    }
+
+    /**
+     * The spans added by the watcher. Like {@link android.text.style.CharacterStyle#wrap} each
+     * run gets its own span object, but all of them refer to the one entry of the watcher's
+     * style table, the {@link android.text.style.CharacterStyle} they draw with.
+     */
+    interface PatternSpan {
+        CharacterStyle getStyle();
+    }
+
+    private static class CharacterPatternSpan extends CharacterStyle implements PatternSpan {
+        private final CharacterStyle style;
+
+        CharacterPatternSpan(CharacterStyle style){
+            this.style = style;
+        }
+
+        @Override public CharacterStyle getStyle() {
+            return style;
+        }
+        @Override public void updateDrawState(TextPaint tp) {
+            style.updateDrawState(tp);
+        }
+        @Override public CharacterStyle getUnderlying() {
+            return style.getUnderlying();
+        }
+    }
+
+    private static class MetricPatternSpan extends MetricAffectingSpan implements PatternSpan {
+        private final MetricAffectingSpan style;
+
+        MetricPatternSpan(MetricAffectingSpan style){
+            this.style = style;
+        }
+
+        @Override public CharacterStyle getStyle() {
+            return style;
+        }
+        @Override public void updateDrawState(TextPaint tp) {
+            style.updateDrawState(tp);
+        }
+        @Override public void updateMeasureState(TextPaint tp) {
+            style.updateMeasureState(tp);
+        }
+        @Override public MetricAffectingSpan getUnderlying() {
+            return style.getUnderlying();
+        }
     }
 }
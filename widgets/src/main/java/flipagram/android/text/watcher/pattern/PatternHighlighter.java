@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.text.watcher.pattern;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import android.annotation.TargetApi;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.TextWatcher;
+import android.widget.EditText;
+
+import flipagram.android.text.watcher.pattern.PatternCharacterStyleTextWatcher.Incremental;
+
+/**
+ * Highlights the text matching {@link java.util.regex.Pattern}s within an
+ * {@link android.widget.EditText} without adding spans to it. The matches are recorded as ranges
+ * and drawn as rectangles worked out from the {@link android.text.Layout}, so a keystroke costs
+ * the matching and an invalidate, with none of the span bookkeeping or the re-layout that
+ * adding and removing spans causes. Suits plain color highlights; use a
+ * {@link flipagram.android.text.watcher.pattern.PatternCharacterStyleTextWatcher} for anything
+ * that changes how the text itself is drawn.
+ * <p>
+ * On API 18 and up {@link #attachOverlay()} draws the highlights in the view's overlay, over
+ * the text, so translucent colors work best there. Otherwise, or to draw behind the text, call
+ * {@link #draw(android.graphics.Canvas)} from the {@link android.widget.EditText}'s onDraw.
+ * You must {@link android.widget.EditText#addTextChangedListener} the highlighter to the
+ * {@link android.widget.EditText}.
+ */
+public class PatternHighlighter implements TextWatcher {
+
+    private final EditText editText;
+
+    private List<PatternHighlight> patternHighlights = new ArrayList<PatternHighlight>();
+
+    private Incremental incremental = Incremental.OFF;
+    private int editStart = -1;
+    private int editEnd = -1;
+
+    private MultiPatternMatcher multiPatternMatcher;
+    private final MatchList matches = new MatchList();
+    private final TextWindow textWindow = new TextWindow();
+    // Every match in the text, rebuilt from scratch when stale
+    private final MatchIndex matchIndex = new MatchIndex();
+    private boolean indexStale = true;
+
+    private final Paint paint = new Paint();
+    private final Rect clipBounds = new Rect();
+    private Drawable overlay;
+
+    public PatternHighlighter(EditText editText){
+        this.editText = editText;
+        paint.setStyle(Paint.Style.FILL);
+    }
+
+    /**
+     * Add the {@link flipagram.android.text.watcher.pattern.PatternHighlighter.PatternHighlight}
+     * to the internal list.
+     * @param patternHighlight
+     * @return this for chaining
+     */
+    public PatternHighlighter addPatternHighlight(PatternHighlight patternHighlight){
+        patternHighlights.add(patternHighlight);
+        return this;
+    }
+
+    /**
+     * Only rescan the text around each edit rather than the whole text, see
+     * {@link flipagram.android.text.watcher.pattern.PatternCharacterStyleTextWatcher#setIncremental}.
+     * @param incremental
+     * @return this for chaining
+     */
+    public PatternHighlighter setIncremental(Incremental incremental){
+        this.incremental = incremental;
+        return this;
+    }
+
+    /**
+     * Draw the highlights in the {@link android.widget.EditText}'s
+     * {@link android.view.View#getOverlay()}, over the text. Does nothing before API 18, call
+     * {@link #draw(android.graphics.Canvas)} instead.
+     * @return this for chaining
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public PatternHighlighter attachOverlay(){
+        if (Build.VERSION.SDK_INT>=Build.VERSION_CODES.JELLY_BEAN_MR2 && overlay==null) {
+            overlay = new HighlightDrawable();
+            editText.getOverlay().add(overlay);
+        }
+        return this;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void detachOverlay(){
+        if (overlay!=null) {
+            editText.getOverlay().remove(overlay);
+            overlay = null;
+        }
+    }
+
+    @Override public void beforeTextChanged(CharSequence s, int start, int count, int after) { }
+    @Override public void onTextChanged(CharSequence s, int start, int before, int count) {
+        matchIndex.textChanged(start, before, count);
+        // Nested edits (another watcher changing the text) widen the pending range
+        if (editStart<0) {
+            editStart = start;
+            editEnd = start + count;
+        } else {
+            editStart = Math.min(editStart, start);
+            editEnd = Math.max(editEnd + count - before, start + count);
+        }
+    }
+    @Override public void afterTextChanged(Editable s) {
+        getMultiPatternMatcher();
+        int regionStart = 0;
+        int regionEnd = s.length();
+        if (incremental!=Incremental.OFF && !indexStale) {
+            // A nested afterTextChanged already rescanned this edit
+            if (editStart<0)
+                return;
+            regionStart = incremental.boundaryBefore(s, Math.min(editStart, regionEnd));
+            regionEnd = incremental.boundaryAfter(s, Math.min(editEnd, regionEnd));
+        }
+        editStart = -1;
+        editEnd = -1;
+        rescan(s, regionStart, regionEnd);
+        editText.invalidate();
+    }
+
+    private void rescan(CharSequence s, int regionStart, int regionEnd){
+        final MultiPatternMatcher matcher = getMultiPatternMatcher();
+        textWindow.copy(s, regionStart, regionEnd);
+        final int offset = textWindow.getOffset();
+        matches.clear();
+        matcher.find(textWindow, regionStart - offset, regionEnd - offset, matches);
+        matches.shift(offset);
+        for (int i = 0; i < matchIndex.patterns(); i++)
+            matchIndex.replace(i, regionStart, regionEnd, matches);
+        if (regionStart==0 && regionEnd==s.length())
+            indexStale = false;
+    }
+
+    /**
+     * Draw the highlights of the lines within the canvas' clip. The canvas must be set up as
+     * for the {@link android.widget.EditText}'s onDraw; call this before the super
+     * implementation to highlight behind the text.
+     * @param canvas
+     */
+    public void draw(Canvas canvas){
+        final Layout layout = editText.getLayout();
+        if (layout==null)
+            return;
+        getMultiPatternMatcher();
+        if (indexStale)
+            rescan(editText.getText(), 0, editText.getText().length());
+
+        canvas.save();
+        canvas.translate(editText.getTotalPaddingLeft(), editText.getTotalPaddingTop());
+        if (canvas.getClipBounds(clipBounds)) {
+            final int length = editText.getText().length();
+            final int firstLine = layout.getLineForVertical(clipBounds.top);
+            final int lastLine = layout.getLineForVertical(clipBounds.bottom);
+            final int visibleStart = layout.getLineStart(firstLine);
+            final int visibleEnd = layout.getLineEnd(lastLine);
+            for (int index = 0; index < matchIndex.patterns(); index++) {
+                paint.setColor(patternHighlights.get(index).color);
+                final int size = matchIndex.size(index);
+                for (int i = matchIndex.firstEndingAtOrAfter(index, visibleStart);
+                     i < size && matchIndex.start(index, i)<=visibleEnd; i++) {
+                    final int end = Math.min(matchIndex.end(index, i), length);
+                    drawMatch(canvas, layout, Math.min(matchIndex.start(index, i), end), end);
+                }
+            }
+        }
+        canvas.restore();
+    }
+
+    /**
+     * A rectangle for each line the match is on.
+     */
+    private void drawMatch(Canvas canvas, Layout layout, int start, int end){
+        if (start==end)
+            return;
+        final int startLine = layout.getLineForOffset(start);
+        final int endLine = layout.getLineForOffset(end);
+        for (int line = startLine; line <= endLine; line++) {
+            float left = line==startLine ? layout.getPrimaryHorizontal(start) : layout.getLineLeft(line);
+            float right = line==endLine ? layout.getPrimaryHorizontal(end) : layout.getLineRight(line);
+            // Right to left text
+            if (left>right) {
+                final float swap = left;
+                left = right;
+                right = swap;
+            }
+            canvas.drawRect(left, layout.getLineTop(line), right, layout.getLineBottom(line), paint);
+        }
+    }
+
+    /**
+     * @return a {@link flipagram.android.text.watcher.pattern.MultiPatternMatcher} of the current
+     * patterns, rebuilt if they changed since it was last used
+     */
+    private MultiPatternMatcher getMultiPatternMatcher(){
+        boolean stale = multiPatternMatcher==null ||
+            multiPatternMatcher.size()!=patternHighlights.size();
+        for (int i = 0; !stale && i < patternHighlights.size(); i++) {
+            final PatternHighlight patternHighlight = patternHighlights.get(i);
+            stale = multiPatternMatcher.getTokenizer(i)!=patternHighlight.tokenizer ||
+                patternHighlight.tokenizer==null && multiPatternMatcher.getPattern(i)!=patternHighlight.pattern;
+        }
+        if (stale) {
+            multiPatternMatcher = new MultiPatternMatcher();
+            for (PatternHighlight patternHighlight : patternHighlights) {
+                if (patternHighlight.tokenizer!=null)
+                    multiPatternMatcher.add(patternHighlight.tokenizer);
+                else
+                    multiPatternMatcher.add(patternHighlight.pattern);
+            }
+            matchIndex.reset(patternHighlights.size());
+            indexStale = true;
+        }
+        return multiPatternMatcher;
+    }
+
+    /**
+     * Hosts the highlights in the view's overlay
+     */
+    private class HighlightDrawable extends Drawable {
+        @Override public void draw(Canvas canvas) {
+            PatternHighlighter.this.draw(canvas);
+        }
+        @Override public void setAlpha(int alpha) { }
+        @Override public void setColorFilter(ColorFilter colorFilter) { }
+        @Override public int getOpacity() {
+            return PixelFormat.TRANSLUCENT;
+        }
+    }
+
+    /**
+     * Associate a {@link java.util.regex.Pattern}, or a
+     * {@link flipagram.android.text.watcher.pattern.SocialTokenizer}, with a highlight color.
+     */
+    public static class PatternHighlight {
+        public Pattern pattern;
+        /**
+         * An ARGB color
+         */
+        public int color;
+        /**
+         * When not null, used instead of the pattern
+         */
+        public SocialTokenizer tokenizer;
+
+        public PatternHighlight(Pattern pattern, int color){
+            this.pattern = pattern;
+            this.color = color;
+        }
+
+        public PatternHighlight(SocialTokenizer tokenizer, int color){
+            this(tokenizer.pattern, color);
+            this.tokenizer = tokenizer;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.text.watcher.pattern;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import flipagram.android.text.watcher.pattern.PatternCharacterStyleTextWatcher.PatternCharacterStyle;
+
+/**
+ * A named set of compiled {@link java.util.regex.Pattern}s, or
+ * {@link flipagram.android.text.watcher.pattern.SocialTokenizer}s, shared by every watcher in
+ * the process. Screens that create watchers for each row, such as a list of comments, register
+ * the set once and add it to each watcher, rather than compiling and listing the patterns again
+ * per row:
+ * <pre>
+ * PatternSet.register("comments", new PatternSet()
+ *     .add(new PatternCharacterStyle(SocialTokenizer.HASHTAG, hashtagStyle))
+ *     .add(new PatternCharacterStyle(SocialTokenizer.MENTION, mentionStyle)));
+ * ...
+ * watcher.addPatternSet(PatternSet.get("comments"));
+ * </pre>
+ * Watchers reference the set's patterns and styles rather than copying them, and start from
+ * the {@link flipagram.android.text.watcher.pattern.MultiPatternMatcher} tables worked out when
+ * the set was registered. A registered set can't be added to.
+ */
+public class PatternSet {
+
+    private static final Map<String, PatternSet> registry = new HashMap<String, PatternSet>();
+
+    private final List<PatternCharacterStyle> patternCharacterStyles = new ArrayList<PatternCharacterStyle>();
+    private final List<PatternCharacterStyle> unmodifiable = Collections.unmodifiableList(patternCharacterStyles);
+    // Built when registered, copied by each watcher
+    private volatile MultiPatternMatcher prototype;
+
+    /**
+     * Register set under name, replacing any set registered before it.
+     * @param name
+     * @param set
+     * @return set, for chaining
+     */
+    public static PatternSet register(String name, PatternSet set){
+        set.freeze();
+        synchronized (registry) {
+            registry.put(name, set);
+        }
+        return set;
+    }
+
+    /**
+     * @param name
+     * @return the set registered under name, or null
+     */
+    public static PatternSet get(String name){
+        synchronized (registry) {
+            return registry.get(name);
+        }
+    }
+
+    /**
+     * Forget the set registered under name. Watchers it was added to keep using it.
+     * @param name
+     */
+    public static void unregister(String name){
+        synchronized (registry) {
+            registry.remove(name);
+        }
+    }
+
+    public PatternSet add(Pattern pattern){
+        return add(new PatternCharacterStyle(pattern, null));
+    }
+
+    public PatternSet add(SocialTokenizer tokenizer){
+        return add(new PatternCharacterStyle(tokenizer, null));
+    }
+
+    /**
+     * Add a pattern along with its style and triggers. Without a
+     * {@link android.text.style.CharacterStyle} the pattern is only used by
+     * {@link flipagram.android.text.watcher.pattern.PatternCallbackTextWatcher}s, styling
+     * leaves it out.
+     * @param patternCharacterStyle
+     * @return this for chaining
+     */
+    public PatternSet add(PatternCharacterStyle patternCharacterStyle){
+        if (prototype!=null)
+            throw new IllegalStateException("PatternSet is registered");
+        patternCharacterStyles.add(patternCharacterStyle);
+        return this;
+    }
+
+    /**
+     * @return the patterns of the set, which can't be modified
+     */
+    public List<PatternCharacterStyle> getPatternCharacterStyles(){
+        return unmodifiable;
+    }
+
+    private synchronized void freeze(){
+        if (prototype!=null)
+            return;
+        final MultiPatternMatcher matcher = new MultiPatternMatcher();
+        for (PatternCharacterStyle patternCharacterStyle : patternCharacterStyles) {
+            if (patternCharacterStyle.tokenizer!=null)
+                matcher.add(patternCharacterStyle.tokenizer);
+            else
+                matcher.add(patternCharacterStyle.pattern);
+        }
+        prototype = matcher;
+    }
+
+    /**
+     * @return whether the registered set's pattern at index is pattern, or tokenizer when that
+     * isn't null
+     */
+    boolean isAt(int index, Pattern pattern, SocialTokenizer tokenizer){
+        final MultiPatternMatcher matcher = prototype;
+        if (matcher==null || index>=matcher.size())
+            return false;
+        return matcher.getTokenizer(index)==tokenizer &&
+            (tokenizer!=null || matcher.getPattern(index)==pattern);
+    }
+
+    /**
+     * @return a matcher for the patterns of the set, which further patterns can be added to,
+     * or null if it isn't registered
+     */
+    MultiPatternMatcher newMatcher(){
+        final MultiPatternMatcher matcher = prototype;
+        return matcher==null ? null : new MultiPatternMatcher(matcher);
+    }
+
+    /**
+     * @return the number of patterns
+     */
+    public int size(){
+        return patternCharacterStyles.size();
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.text.watcher.pattern;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.style.CharacterStyle;
+
+import flipagram.android.text.watcher.pattern.PatternCharacterStyleTextWatcher.PatternCharacterStyle;
+
+/**
+ * Styles read only text, such as captions in a scrolling feed, with the same
+ * {@link flipagram.android.text.watcher.pattern.PatternCharacterStyleTextWatcher.PatternCharacterStyle}s
+ * used while editing. Results are kept in a process wide LRU cache keyed by the text and the
+ * styles, so binding the same caption again, as a list scrolls back and forth, is a cache hit
+ * rather than another scan. {@link #style(CharSequence, List, Executor, Callback)} moves the
+ * scan off the main thread.
+ * <p>
+ * The {@link android.text.SpannableString}s returned are shared by everyone asking for the same
+ * text and styles, so don't modify them. {@link android.widget.TextView#setText(CharSequence)}
+ * takes a copy of the spans, so setting them is fine.
+ */
+public class PatternStyler {
+
+    private static final int DEFAULT_CACHE_SIZE = 256;
+    private static volatile LruCache<Key, SpannableString> cache =
+        new LruCache<Key, SpannableString>(DEFAULT_CACHE_SIZE);
+    private static Handler mainHandler;
+
+    private PatternStyler(){ }
+
+    /**
+     * Styles text, unless it is already in the cache, on the calling thread.
+     * @param text
+     * @param patternCharacterStyles
+     * @return the styled text
+     */
+    public static SpannableString style(CharSequence text, List<PatternCharacterStyle> patternCharacterStyles){
+        final Key key = new Key(text, patternCharacterStyles);
+        SpannableString styled = cache.get(key);
+        if (styled==null) {
+            styled = scan(key);
+            cache.put(key, styled);
+        }
+        return styled;
+    }
+
+    /**
+     * Styles text on the executor, unless it is already in the cache, and hands the result to
+     * the callback on the main thread. A cache hit calls back straight away, before this returns.
+     * As views are recycled, compare the text given to the callback with the text the view is now
+     * bound to before using the result.
+     * @param text
+     * @param patternCharacterStyles
+     * @param executor
+     * @param callback
+     * @return true if the result came from the cache
+     */
+    public static boolean style(
+            final CharSequence text,
+            final List<PatternCharacterStyle> patternCharacterStyles,
+            Executor executor,
+            final Callback callback
+    ){
+        final Key key = new Key(text, patternCharacterStyles);
+        final SpannableString cached = cache.get(key);
+        if (cached!=null) {
+            callback.onStyled(text, cached);
+            return true;
+        }
+        final Handler handler = getMainHandler();
+        executor.execute(new Runnable() {
+            @Override public void run() {
+                final SpannableString styled = scan(key);
+                cache.put(key, styled);
+                handler.post(new Runnable() {
+                    @Override public void run() {
+                        callback.onStyled(text, styled);
+                    }
+                });
+            }
+        });
+        return false;
+    }
+
+    /**
+     * @return the cached result for text and patternCharacterStyles, or null
+     */
+    public static SpannableString getCached(CharSequence text, List<PatternCharacterStyle> patternCharacterStyles){
+        return cache.get(new Key(text, patternCharacterStyles));
+    }
+
+    /**
+     * Change how many styled texts are cached, 256 by default. The cache is emptied.
+     * @param maxSize
+     */
+    public static void setCacheSize(int maxSize){
+        cache = new LruCache<Key, SpannableString>(maxSize);
+    }
+
+    public static void clearCache(){
+        cache.evictAll();
+    }
+
+    private static synchronized Handler getMainHandler(){
+        if (mainHandler==null)
+            mainHandler = new Handler(Looper.getMainLooper());
+        return mainHandler;
+    }
+
+    private static SpannableString scan(Key key){
+        // Matchers aren't thread safe, so each scan gets its own
+        final MultiPatternMatcher matcher = new MultiPatternMatcher();
+        for (PatternCharacterStyle patternCharacterStyle : key.patternCharacterStyles) {
+            if (patternCharacterStyle.tokenizer!=null)
+                matcher.add(patternCharacterStyle.tokenizer);
+            else
+                matcher.add(patternCharacterStyle.pattern);
+        }
+        final MatchList matches = new MatchList();
+        matcher.find(key.text, 0, key.text.length(), matches);
+
+        // Patterns sharing a CharacterStyle share a style, and its touching matches a span
+        final PatternCharacterStyle[] patternCharacterStyles = key.patternCharacterStyles;
+        final int[] styleIds = new int[patternCharacterStyles.length];
+        for (int i = 0; i < patternCharacterStyles.length; i++) {
+            int id = 0;
+            while(patternCharacterStyles[id].characterStyle!=patternCharacterStyles[i].characterStyle)
+                id++;
+            styleIds[i] = id;
+        }
+        final StyleRuns runs = new StyleRuns();
+        final SpannableString styled = new SpannableString(key.text);
+        for (int i = 0; i < patternCharacterStyles.length; i++) {
+            // Patterns without a style, such as those of a PatternSet only used for callbacks
+            if (styleIds[i]!=i || patternCharacterStyles[i].characterStyle==null)
+                continue;
+            runs.collect(matches, styleIds, i);
+            for (int r = 0; r < runs.size(); r++) {
+                styled.setSpan(
+                    CharacterStyle.wrap(patternCharacterStyles[i].characterStyle),
+                    runs.start(r),
+                    runs.end(r),
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+                );
+            }
+        }
+        return styled;
+    }
+
+    /**
+     * Receives the result of {@link #style(CharSequence, List, Executor, Callback)}
+     */
+    public interface Callback {
+        /**
+         * @param text the text that was asked for
+         * @param styled text with the spans
+         */
+        void onStyled(CharSequence text, SpannableString styled);
+    }
+
+    /**
+     * The plain text and the styles, which are compared by identity
+     */
+    private static class Key {
+        final String text;
+        final PatternCharacterStyle[] patternCharacterStyles;
+        private final int hashCode;
+
+        Key(CharSequence text, List<PatternCharacterStyle> patternCharacterStyles){
+            this.text = text.toString();
+            this.patternCharacterStyles = patternCharacterStyles.toArray(
+                new PatternCharacterStyle[patternCharacterStyles.size()]);
+            this.hashCode = 31 * this.text.hashCode() + Arrays.hashCode(this.patternCharacterStyles);
+        }
+
+        @Override public boolean equals(Object o) {
+            if (this==o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            final Key key = (Key) o;
+            return hashCode==key.hashCode &&
+                text.equals(key.text) &&
+                Arrays.equals(patternCharacterStyles, key.patternCharacterStyles);
+        }
+
+        @Override public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.text.watcher.pattern;
+
+/**
+ * How often a watcher was able to skip a pattern because none of its triggers were near the
+ * edit. Each pattern counts once per rescan.
+ */
+public class PrefilterStats {
+    long checked;
+    long skipped;
+
+    /**
+     * @return the number of times a pattern was due to be rescanned
+     */
+    public long getChecked(){
+        return checked;
+    }
+
+    /**
+     * @return the number of those times it was skipped
+     */
+    public long getSkipped(){
+        return skipped;
+    }
+
+    /**
+     * @return the fraction of pattern rescans skipped, 0 before the first
+     */
+    public float getSkipRate(){
+        return checked==0 ? 0 : (float) skipped / checked;
+    }
+
+    public void reset(){
+        checked = 0;
+        skipped = 0;
+    }
+
+    @Override public String toString() {
+        return "PrefilterStats{skipped " + skipped + " of " + checked + "}";
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.text.watcher.pattern;
+
+import java.util.Arrays;
+
+/**
+ * An {@link flipagram.android.text.watcher.pattern.OnScanListener} keeping the percentiles of
+ * the scan times over the last few hundred scans, along with running totals. Recording a scan
+ * is a store into a ring buffer, so it can be left on in production; percentiles are only
+ * worked out when asked for, for instance when reporting telemetry. Thread safe.
+ */
+public class ScanMetrics implements OnScanListener {
+
+    private static final int DEFAULT_WINDOW = 512;
+
+    // The scan times of the last window scans
+    private final long[] window;
+    private int next;
+    private int count;
+    // Sorted copy of the window, reused between queries
+    private final long[] sorted;
+
+    private long scans;
+    private long totalNanos;
+    private long charsScanned;
+    private long matches;
+    private long spansAdded;
+    private long spansRemoved;
+
+    public ScanMetrics(){
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param windowSize the number of recent scans the percentiles are taken over
+     */
+    public ScanMetrics(int windowSize){
+        window = new long[windowSize];
+        sorted = new long[windowSize];
+    }
+
+    @Override public synchronized void onScan(
+            long scanNanos,
+            int charsScanned,
+            int matches,
+            int spansAdded,
+            int spansRemoved
+    ){
+        window[next] = scanNanos;
+        next = (next + 1) % window.length;
+        count = Math.min(count + 1, window.length);
+        scans++;
+        totalNanos += scanNanos;
+        this.charsScanned += charsScanned;
+        this.matches += matches;
+        this.spansAdded += spansAdded;
+        this.spansRemoved += spansRemoved;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the scan time, in nanoseconds, that percentile of the recent scans took at most,
+     * or 0 before the first scan
+     */
+    public synchronized long getPercentileNanos(double percentile){
+        if (count==0)
+            return 0;
+        System.arraycopy(window, 0, sorted, 0, count);
+        Arrays.sort(sorted, 0, count);
+        final int rank = (int) Math.ceil(percentile / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, rank))];
+    }
+
+    public long getP50Nanos(){
+        return getPercentileNanos(50);
+    }
+
+    public long getP95Nanos(){
+        return getPercentileNanos(95);
+    }
+
+    public long getP99Nanos(){
+        return getPercentileNanos(99);
+    }
+
+    public synchronized long getScans(){
+        return scans;
+    }
+
+    public synchronized long getTotalNanos(){
+        return totalNanos;
+    }
+
+    public synchronized long getCharsScanned(){
+        return charsScanned;
+    }
+
+    public synchronized long getMatches(){
+        return matches;
+    }
+
+    public synchronized long getSpansAdded(){
+        return spansAdded;
+    }
+
+    public synchronized long getSpansRemoved(){
+        return spansRemoved;
+    }
+
+    public synchronized void reset(){
+        next = 0;
+        count = 0;
+        scans = 0;
+        totalNanos = 0;
+        charsScanned = 0;
+        matches = 0;
+        spansAdded = 0;
+        spansRemoved = 0;
+    }
+
+    @Override public synchronized String toString() {
+        return "ScanMetrics{scans " + scans +
+            ", p50 " + getP50Nanos() / 1000 + "us" +
+            ", p95 " + getP95Nanos() / 1000 + "us" +
+            ", p99 " + getP99Nanos() / 1000 + "us" +
+            ", chars " + charsScanned +
+            ", matches " + matches +
+            ", spans +" + spansAdded + " -" + spansRemoved + "}";
+    }
+}
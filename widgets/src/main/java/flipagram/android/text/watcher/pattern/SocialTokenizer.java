@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.text.watcher.pattern;
+
+import java.util.regex.Pattern;
+
+/**
+ * Hand written matchers for hashtags, mentions and links. They can be used in place of a
+ * {@link java.util.regex.Pattern} in a
+ * {@link flipagram.android.text.watcher.pattern.PatternCallbackTextWatcher.PatternCallback} or a
+ * {@link flipagram.android.text.watcher.pattern.PatternCharacterStyleTextWatcher.PatternCharacterStyle}
+ * and are much cheaper than the equivalent regular expressions: each token is read once, a code
+ * point at a time, without allocating.
+ * <p>
+ * Letters, digits and marks are those of {@link java.lang.Character}, so tags and mentions in any
+ * script are recognized. Each tokenizer also carries an equivalent {@link java.util.regex.Pattern}.
+ */
+public enum SocialTokenizer {
+    /**
+     * <code>#</code> (or a fullwidth <code>&#xFF03;</code>) followed by letters, marks, digits and
+     * underscores. Not preceded by one of those or by <code>&amp;</code>, so <code>a#b</code>
+     * and <code>&amp;#39;</code> are not hashtags.
+     */
+    HASHTAG("(?<![" + Classes.WORD + "&])[#\\uFF03][" + Classes.WORD + "]+", '#', '\uFF03') {
+        @Override int matchEnd(CharSequence s, int start, int limit) {
+            final char c = s.charAt(start);
+            if (c!='#' && c!='\uFF03')
+                return -1;
+            if (start>0) {
+                final int before = Character.codePointBefore(s, start);
+                if (isWordChar(before) || before=='&')
+                    return -1;
+            }
+            final int end = wordEnd(s, start + 1, limit);
+            return end>start + 1 ? end : -1;
+        }
+    },
+    /**
+     * <code>@</code> (or a fullwidth <code>&#xFF20;</code>) followed by a letter and then letters,
+     * marks, digits, underscores, dashes and dots. Trailing dots are not part of the mention and
+     * it can't be preceded by a letter, digit or underscore so email addresses are not mentions.
+     */
+    MENTION("(?<![" + Classes.WORD + "])[@\\uFF20]\\p{L}" +
+            "(?:[" + Classes.WORD + "\\-]|\\.+(?=[" + Classes.WORD + "\\-]))*",
+            '@', '\uFF20') {
+        @Override int matchEnd(CharSequence s, int start, int limit) {
+            final char c = s.charAt(start);
+            if (c!='@' && c!='\uFF20')
+                return -1;
+            if (start>0 && isWordChar(Character.codePointBefore(s, start)))
+                return -1;
+            int i = start + 1;
+            if (i>=limit)
+                return -1;
+            int cp = Character.codePointAt(s, i);
+            if (!Character.isLetter(cp) || i + Character.charCount(cp)>limit)
+                return -1;
+            i += Character.charCount(cp);
+            int end = i;
+            while(i<limit){
+                cp = Character.codePointAt(s, i);
+                final int next = i + Character.charCount(cp);
+                if (next>limit || !(isWordChar(cp) || cp=='-' || cp=='.'))
+                    break;
+                i = next;
+                if (cp!='.')
+                    end = i;
+            }
+            // Like a lookahead, dots cut off by the limit count if a word follows them
+            if (end<i && i<s.length()) {
+                final int after = Character.codePointAt(s, i);
+                if (isWordChar(after) || after=='-')
+                    end = i;
+            }
+            return end;
+        }
+    },
+    /**
+     * <code>http://</code> or <code>https://</code>, in any case, followed by everything up to
+     * the next space. Trailing punctuation such as the full stop ending a sentence is left out.
+     */
+    URL("(?<![\\p{L}\\p{Nd}])[hH][tT][tT][pP][sS]?://" +
+            "[^" + Classes.SPACE + "]*[^" + Classes.SPACE + Classes.URL_TRAILING_ESCAPED + "]",
+            'h', 'H') {
+        @Override int matchEnd(CharSequence s, int start, int limit) {
+            int i = start;
+            if (!regionMatchesIgnoreCase(s, i, limit, "http"))
+                return -1;
+            i += 4;
+            if (i<limit && (s.charAt(i)=='s' || s.charAt(i)=='S'))
+                i++;
+            if (!regionMatchesIgnoreCase(s, i, limit, "://"))
+                return -1;
+            if (start>0) {
+                final int before = Character.codePointBefore(s, start);
+                if (Character.isLetter(before) || Character.isDigit(before))
+                    return -1;
+            }
+            i += 3;
+            int end = -1;
+            while(i<limit){
+                final int cp = Character.codePointAt(s, i);
+                final int next = i + Character.charCount(cp);
+                if (next>limit || isSpace(cp))
+                    break;
+                i = next;
+                if (Classes.URL_TRAILING.indexOf(cp)<0)
+                    end = i;
+            }
+            return end;
+        }
+    };
+
+    /**
+     * The equivalent {@link java.util.regex.Pattern}
+     */
+    public final Pattern pattern;
+    private final char[] triggers;
+
+    SocialTokenizer(String regex, char... triggers){
+        this.pattern = Pattern.compile(regex);
+        this.triggers = triggers;
+    }
+
+    /**
+     * @param s the text
+     * @param start where the token must start
+     * @param limit the token must end at or before limit
+     * @return the end of the token starting at start, or -1 if there isn't one
+     */
+    abstract int matchEnd(CharSequence s, int start, int limit);
+
+    /**
+     * @return the characters a token can start with
+     */
+    char[] getTriggers(){
+        return triggers;
+    }
+
+    /**
+     * Regular expression classes matching isWordChar() and isSpace(). Nested so the constants
+     * can be used by the enum constructors.
+     */
+    private static final class Classes {
+        static final String WORD = "\\p{L}\\p{M}\\p{Nd}_";
+        // Spelled out, \s means White_Space, which includes U+0085, to Android's ICU regex
+        static final String SPACE = "\\x09-\\x0D\\x1C-\\x1F\\p{Z}";
+        static final String URL_TRAILING = ".,;:!?'\")]";
+        static final String URL_TRAILING_ESCAPED = ".,;:!?'\")\\]";
+    }
+
+    private static int wordEnd(CharSequence s, int i, int limit){
+        while(i<limit){
+            final int cp = Character.codePointAt(s, i);
+            final int next = i + Character.charCount(cp);
+            if (next>limit || !isWordChar(cp))
+                break;
+            i = next;
+        }
+        return i;
+    }
+
+    private static boolean isWordChar(int cp){
+        if (cp=='_' || Character.isLetter(cp) || Character.isDigit(cp))
+            return true;
+        switch(Character.getType(cp)){
+            case Character.NON_SPACING_MARK:
+            case Character.ENCLOSING_MARK:
+            case Character.COMBINING_SPACING_MARK:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isSpace(int cp){
+        return Character.isWhitespace(cp) || Character.isSpaceChar(cp);
+    }
+
+    private static boolean regionMatchesIgnoreCase(CharSequence s, int start, int limit, String lowerCase){
+        if (start + lowerCase.length()>limit)
+            return false;
+        for (int i = 0; i < lowerCase.length(); i++) {
+            if (Character.toLowerCase(s.charAt(start + i))!=lowerCase.charAt(i))
+                return false;
+        }
+        return true;
+    }
+}
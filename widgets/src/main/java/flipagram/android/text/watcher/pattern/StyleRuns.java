@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.text.watcher.pattern;
+
+import java.util.Arrays;
+
+/**
+ * The matches of the patterns sharing a style, merged into runs where they overlap or touch so
+ * that one span covers what would otherwise take several. Matches are not merged across a gap,
+ * not even whitespace: the span would style the gap too, and a run reaching across a token or
+ * line boundary couldn't be reconciled by an incremental rescan of one side of it. Reused from
+ * one rescan to the next.
+ */
+class StyleRuns {
+    // Start in the high half and end in the low half, so that sorting orders by start
+    private long[] runs = new long[16];
+    private int size;
+
+    /**
+     * Collect the runs of one style.
+     * @param matches
+     * @param styleIds the style of each pattern index
+     * @param styleId
+     */
+    void collect(MatchList matches, int[] styleIds, int styleId){
+        size = 0;
+        boolean sorted = true;
+        for (int m = 0; m < matches.size(); m++) {
+            if (styleIds[matches.index(m)]!=styleId)
+                continue;
+            if (size==runs.length)
+                runs = Arrays.copyOf(runs, size * 2);
+            runs[size] = (long) matches.start(m)<<32 | matches.end(m);
+            // Matches of one pattern are in order, those of several are interleaved
+            sorted &= size==0 || runs[size - 1]<=runs[size];
+            size++;
+        }
+        if (!sorted)
+            Arrays.sort(runs, 0, size);
+
+        int merged = 0;
+        for (int i = 0; i < size; i++) {
+            if (merged>0 && start(i)<=end(merged - 1)) {
+                if (end(i)>end(merged - 1))
+                    runs[merged - 1] = runs[merged - 1] & 0xFFFFFFFF00000000L | end(i);
+            } else {
+                runs[merged++] = runs[i];
+            }
+        }
+        size = merged;
+    }
+
+    int size(){
+        return size;
+    }
+
+    int start(int i){
+        return (int) (runs[i]>>>32);
+    }
+
+    int end(int i){
+        return (int) runs[i];
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.text.watcher.pattern;
+
+import android.text.TextUtils;
+
+/**
+ * A {@link java.lang.CharSequence} over a copy of part of some text, typically an
+ * {@link android.text.Editable}. Every {@link android.text.SpannableStringBuilder#charAt} goes
+ * through an interface call and the gap buffer arithmetic; copying the part to be matched once,
+ * with {@link android.text.TextUtils#getChars}, makes each character a plain array access. The
+ * buffer is reused, so a window doesn't allocate once it has grown to the largest region.
+ * <p>
+ * The window also keeps {@link java.util.regex.Matcher#reset(CharSequence)}, which on Android
+ * copies its input into a {@link java.lang.String}, to the region rather than the whole text.
+ * <p>
+ * Index 0 of the window is {@link #getOffset()} in the text: subtract it from text positions
+ * before matching and add it to the positions of the matches found.
+ */
+public class TextWindow implements CharSequence {
+    /**
+     * Characters copied either side of the region so that lookbehinds and lookaheads, and the
+     * checks before a hashtag or after a mention, still see the text around it
+     */
+    public static final int CONTEXT = 32;
+
+    private char[] buffer = new char[256];
+    private int offset;
+    private int length;
+
+    /**
+     * Copy the region of text, and up to {@link #CONTEXT} characters either side of it, into
+     * the window.
+     * @param text
+     * @param regionStart
+     * @param regionEnd
+     * @return this for chaining
+     */
+    public TextWindow copy(CharSequence text, int regionStart, int regionEnd){
+        final int start = Math.max(0, regionStart - CONTEXT);
+        final int end = Math.min(text.length(), regionEnd + CONTEXT);
+        if (buffer.length<end - start)
+            buffer = new char[Math.max(end - start, buffer.length * 2)];
+        TextUtils.getChars(text, start, end, buffer, 0);
+        offset = start;
+        length = end - start;
+        return this;
+    }
+
+    /**
+     * @return the position in the text of the first character of the window
+     */
+    public int getOffset(){
+        return offset;
+    }
+
+    @Override public int length() {
+        return length;
+    }
+
+    @Override public char charAt(int index) {
+        if (index<0 || index>=length)
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        return buffer[index];
+    }
+
+    @Override public CharSequence subSequence(int start, int end) {
+        if (start<0 || end>length || start>end)
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+        return new String(buffer, start, end - start);
+    }
+
+    @Override public String toString() {
+        return new String(buffer, 0, length);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015 Flipagram, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package flipagram.android.text.watcher.pattern;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Works out which of a watcher's patterns can be skipped on a rescan. Every match of a pattern
+ * contains one of its triggers: those declared with the pattern or, failing that, the
+ * characters a {@link flipagram.android.text.watcher.pattern.MultiPatternMatcher} keys it by,
+ * which ignoring case include every character that folds to the first. A pattern is skipped
+ * when none of its triggers are in the rescanned region and none were broken up by the edits
+ * since the last rescan, as then neither the old nor the new text can have matched there.
+ * Patterns without triggers are never skipped.
+ */
+class TriggerPrefilter {
+
+    private String[][] declared = new String[0][];
+    private String[][] triggers = new String[0][];
+    // Triggers were broken up by an edit since the last rescan
+    private boolean[] broken = new boolean[0];
+    // Always skipped, their matches aren't used
+    private boolean[] excluded = new boolean[0];
+    private boolean[] skip = new boolean[0];
+    private final PrefilterStats stats = new PrefilterStats();
+
+    /**
+     * Forget all of the patterns, keeping the stats.
+     */
+    void clear(){
+        declared = new String[0][];
+        triggers = new String[0][];
+        broken = new boolean[0];
+        excluded = new boolean[0];
+        skip = new boolean[0];
+    }
+
+    /**
+     * Add the next pattern. Its first rescan is never skipped, nothing is known about the edits
+     * before it was added.
+     * @param declaredTriggers the triggers declared with the pattern, or null
+     * @param tokenizer
+     * @param pattern
+     */
+    void add(String[] declaredTriggers, SocialTokenizer tokenizer, Pattern pattern){
+        final int index = declared.length;
+        declared = Arrays.copyOf(declared, index + 1);
+        declared[index] = declaredTriggers;
+        triggers = Arrays.copyOf(triggers, index + 1);
+        triggers[index] = resolve(declaredTriggers, tokenizer, pattern);
+        broken = Arrays.copyOf(broken, index + 1);
+        broken[index] = true;
+        excluded = Arrays.copyOf(excluded, index + 1);
+        skip = Arrays.copyOf(skip, index + 1);
+    }
+
+    /**
+     * Always skip the pattern at index.
+     */
+    void exclude(int index){
+        excluded[index] = true;
+    }
+
+    private static String[] resolve(String[] declaredTriggers, SocialTokenizer tokenizer, Pattern pattern){
+        if (declaredTriggers!=null) {
+            // An empty trigger is found everywhere
+            for (String trigger : declaredTriggers) {
+                if (trigger.length()==0)
+                    return null;
+            }
+            return declaredTriggers.length>0 ? declaredTriggers : null;
+        }
+        final char[] chars = tokenizer!=null ?
+            tokenizer.getTriggers() :
+            MultiPatternMatcher.triggerChars(pattern);
+        if (chars==null)
+            return null;
+        final String[] resolved = new String[chars.length];
+        for (int i = 0; i < chars.length; i++)
+            resolved[i] = String.valueOf(chars[i]);
+        return resolved;
+    }
+
+    /**
+     * @return the triggers declared with the pattern at index, to tell when they change
+     */
+    String[] getDeclared(int index){
+        return declared[index];
+    }
+
+    /**
+     * Note the triggers broken up by replacing count characters of s at start.
+     */
+    void beforeTextChanged(CharSequence s, int start, int count){
+        for (int i = 0; i < triggers.length; i++) {
+            if (!broken[i] && triggers[i]!=null)
+                broken[i] = overlaps(s, start, count, triggers[i]);
+        }
+    }
+
+    /**
+     * The edits so far have been rescanned.
+     */
+    void rescanned(){
+        Arrays.fill(broken, false);
+    }
+
+    /**
+     * Work out the patterns to skip when rescanning the region.
+     * @return the number of patterns left to rescan
+     */
+    int filter(CharSequence s, int regionStart, int regionEnd){
+        int remaining = 0;
+        for (int i = 0; i < triggers.length; i++) {
+            if (excluded[i]) {
+                skip[i] = true;
+                continue;
+            }
+            skip[i] = triggers[i]!=null && !broken[i] &&
+                !contains(s, regionStart, regionEnd, triggers[i]);
+            stats.checked++;
+            if (skip[i])
+                stats.skipped++;
+            else
+                remaining++;
+        }
+        return remaining;
+    }
+
+    /**
+     * @return by index, the patterns {@link #filter} decided to skip
+     */
+    boolean[] getSkip(){
+        return skip;
+    }
+
+    PrefilterStats getStats(){
+        return stats;
+    }
+
+    private static boolean contains(CharSequence s, int regionStart, int regionEnd, String[] triggers){
+        for (String trigger : triggers) {
+            final int last = regionEnd - trigger.length();
+            final char first = trigger.charAt(0);
+            for (int i = regionStart; i <= last; i++) {
+                if (s.charAt(i)==first && regionMatches(s, i, trigger))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether replacing count characters at start changes an occurrence of a trigger,
+     * including by inserting into the middle of one
+     */
+    private static boolean overlaps(CharSequence s, int start, int count, String[] triggers){
+        for (String trigger : triggers) {
+            final int first = Math.max(0, start - trigger.length() + 1);
+            final int last = Math.min(s.length() - trigger.length(), start + count - 1);
+            for (int i = first; i <= last; i++) {
+                if (regionMatches(s, i, trigger))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean regionMatches(CharSequence s, int start, String trigger){
+        for (int i = 0; i < trigger.length(); i++) {
+            if (s.charAt(start + i)!=trigger.charAt(i))
+                return false;
+        }
+        return true;
+    }
+}
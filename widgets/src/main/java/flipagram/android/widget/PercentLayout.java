@@ -22,6 +22,8 @@ import android.view.Gravity;
 import android.view.View;
 import android.view.ViewGroup;
 
+import java.util.Arrays;
+
 import flipagram.android.widgets.R;
 
 /**
@@ -29,6 +31,18 @@ import flipagram.android.widgets.R;
  * children as a float that ranges between 0 and 1 where 0 is the top/left and 1 is bottom/right.
  */
 public class PercentLayout extends ViewGroup {
+    // Where each child is laid out, by child index, worked out in onMeasure or else onLayout
+    private View[] laidOutChildren = new View[0];
+    private int[] childLefts = new int[0];
+    private int[] childTops = new int[0];
+    private int[] childRights = new int[0];
+    private int[] childBottoms = new int[0];
+    // The container the rects were worked out for
+    private int rectsPaddingTop;
+    private int rectsPaddingLeft;
+    private int rectsContainerVerticalPixels;
+    private int rectsContainerHorizontalPixels;
+
     public PercentLayout(Context context) {
         this(context, null);
     }
@@ -54,25 +68,33 @@ public class PercentLayout extends ViewGroup {
 
     @Override
     protected void onMeasure(int widthSpec, int heightSpec) {
+        final int horizontalPadding = getPaddingLeft() + getPaddingRight();
+        final int verticalPadding = getPaddingTop() + getPaddingBottom();
         final int count = getChildCount();
         for (int i = 0; i < count; i++) {
             final View child = getChildAt(i);
             if (child.getVisibility() != GONE) {
                 PercentLayout.LayoutParams lp = (PercentLayout.LayoutParams) child.getLayoutParams();
 
+                // Same inputs, same measurement, unless the child itself changed
+                if (!child.isLayoutRequested() &&
+                        lp.isMeasuredWith(widthSpec, heightSpec, horizontalPadding, verticalPadding))
+                    continue;
+
                 final int childWidthMeasureSpec = getChildMeasureSpec(
                     widthSpec,
-                    getPaddingLeft() + getPaddingRight(),
+                    horizontalPadding,
                     lp.width,
                     lp.wide);
 
                 final int childHeightMeasureSpec = getChildMeasureSpec(
                     heightSpec,
-                    getPaddingTop() + getPaddingBottom(),
+                    verticalPadding,
                     lp.height,
                     lp.high);
 
                 child.measure(childWidthMeasureSpec, childHeightMeasureSpec);
+                lp.setMeasuredWith(widthSpec, heightSpec, horizontalPadding, verticalPadding);
             }
         }
         int lockedWidth=MeasureSpec.getSize(widthSpec);
@@ -82,6 +104,7 @@ public class PercentLayout extends ViewGroup {
             MeasureSpec.makeMeasureSpec(lockedWidth, MeasureSpec.EXACTLY),
             MeasureSpec.makeMeasureSpec(lockedHeight, MeasureSpec.EXACTLY));
 
+        computeChildRects();
     }
 
     public static int getChildMeasureSpec(int spec, int padding, int childDimension, float pct) {
@@ -161,66 +184,132 @@ public class PercentLayout extends ViewGroup {
         return MeasureSpec.makeMeasureSpec(resultSize, resultMode);
     }
 
-    @Override
-    protected void onLayout(boolean changed, int l, int t, int r, int b) {
-        int count = getChildCount();
+    /**
+     * Work out where each child is laid out, into the arrays onLayout reads. Only the children
+     * that were moved, resized or replaced since are worked out again, unless the container
+     * changed.
+     */
+    private void computeChildRects() {
+        final int count = getChildCount();
+        ensureRectCapacity(count);
+        final boolean containerChanged = updateContainer();
+        for (int i = 0; i < count; i++) {
+            View child = getChildAt(i);
+            if (child.getVisibility() != GONE) {
+                PercentLayout.LayoutParams lp = (PercentLayout.LayoutParams) child.getLayoutParams();
 
-        int childLeft=0;
-        int childTop=0;
-        int childRight=0;
-        int childBottom=0;
+                if (!containerChanged && laidOutChildren[i] == child &&
+                        lp.isPositionedWith(child.getMeasuredWidth(), child.getMeasuredHeight()))
+                    continue;
+                computeChildRect(i, child, lp);
+            }
+        }
+        // Don't hold on to removed children
+        for (int i = count; i < laidOutChildren.length; i++)
+            laidOutChildren[i] = null;
+    }
 
+    private void ensureRectCapacity(int count) {
+        if (laidOutChildren.length < count) {
+            laidOutChildren = Arrays.copyOf(laidOutChildren, count);
+            childLefts = Arrays.copyOf(childLefts, count);
+            childTops = Arrays.copyOf(childTops, count);
+            childRights = Arrays.copyOf(childRights, count);
+            childBottoms = Arrays.copyOf(childBottoms, count);
+        }
+    }
+
+    /**
+     * Take the container inside the padding from the measured size.
+     * @return whether it changed since the rects were last worked out
+     */
+    private boolean updateContainer() {
         final int paddingTop = getPaddingTop();
         final int paddingLeft = getPaddingLeft();
-        final int verticalPadding = paddingTop + getPaddingBottom();
-        final int horizontalPadding = getPaddingLeft() + getPaddingRight();
+        final int containerVerticalPixels = getMeasuredHeight() - paddingTop - getPaddingBottom();
+        final int containerHorizontalPixels = getMeasuredWidth() - paddingLeft - getPaddingRight();
+
+        final boolean containerChanged =
+            rectsPaddingTop != paddingTop ||
+            rectsPaddingLeft != paddingLeft ||
+            rectsContainerVerticalPixels != containerVerticalPixels ||
+            rectsContainerHorizontalPixels != containerHorizontalPixels;
+        rectsPaddingTop = paddingTop;
+        rectsPaddingLeft = paddingLeft;
+        rectsContainerVerticalPixels = containerVerticalPixels;
+        rectsContainerHorizontalPixels = containerHorizontalPixels;
+        return containerChanged;
+    }
 
-        final int containerVerticalPixels = getMeasuredHeight() - verticalPadding;
-        final int containerHorizontalPixels = getMeasuredWidth() - horizontalPadding;
+    /**
+     * Work out where the child at index i is laid out within the container last taken by
+     * updateContainer().
+     */
+    private void computeChildRect(int i, View child, PercentLayout.LayoutParams lp) {
+        final int paddingTop = rectsPaddingTop;
+        final int paddingLeft = rectsPaddingLeft;
+        final int containerVerticalPixels = rectsContainerVerticalPixels;
+        final int containerHorizontalPixels = rectsContainerHorizontalPixels;
+
+        laidOutChildren[i] = child;
+        lp.setPositionedWith(child.getMeasuredWidth(), child.getMeasuredHeight());
+
+        final int x = (int) (lp.x * containerHorizontalPixels);
+        final int y = (int) (lp.y * containerVerticalPixels);
+
+        final int childVerticalPixels = child.getMeasuredHeight()!=0?
+            child.getMeasuredHeight():
+            (int)(containerVerticalPixels * lp.high);
+
+        final int childHorizontalPixels = child.getMeasuredWidth()!=0?
+            child.getMeasuredWidth():
+            (int)(containerHorizontalPixels * lp.wide);
+
+        final int childTop;
+        switch(lp.gravity & Gravity.VERTICAL_GRAVITY_MASK){
+            case Gravity.BOTTOM:
+                childTop = paddingTop + y - childVerticalPixels;
+                break;
+            case Gravity.CENTER_VERTICAL:
+                childTop = paddingTop + y - childVerticalPixels/2;
+                break;
+            case Gravity.TOP:
+            default:
+                childTop = paddingTop + y;
+        }
+        childTops[i] = childTop;
+        childBottoms[i] = childTop + childVerticalPixels;
 
+        final int childLeft;
+        switch(lp.gravity & Gravity.HORIZONTAL_GRAVITY_MASK){
+            case Gravity.RIGHT:
+                childLeft = paddingLeft + x - childHorizontalPixels;
+                break;
+            case Gravity.CENTER_HORIZONTAL:
+                childLeft = paddingLeft + x - childHorizontalPixels/2;
+                break;
+            case Gravity.LEFT:
+            default:
+                childLeft = paddingLeft + x;
+        }
+        childLefts[i] = childLeft;
+        childRights[i] = childLeft + childHorizontalPixels;
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        final int count = getChildCount();
+        // Children added since onMeasure have no rect yet
+        ensureRectCapacity(count);
+        final boolean containerChanged = updateContainer();
         for (int i = 0; i < count; i++) {
-            View child = getChildAt(i);
+            final View child = getChildAt(i);
             if (child.getVisibility() != GONE) {
-                PercentLayout.LayoutParams lp = (PercentLayout.LayoutParams) child.getLayoutParams();
-
-                final int x = (int) (lp.x * containerHorizontalPixels);
-                final int y = (int) (lp.y * containerVerticalPixels);
-
-                final int childVerticalPixels = child.getMeasuredHeight()!=0?
-                    child.getMeasuredHeight():
-                    (int)(containerVerticalPixels * lp.high);
-
-                final int childHorizontalPixels = child.getMeasuredWidth()!=0?
-                    child.getMeasuredWidth():
-                    (int)(containerHorizontalPixels * lp.wide);
-
-                switch(lp.gravity & Gravity.VERTICAL_GRAVITY_MASK){
-                    case Gravity.BOTTOM:
-                        childTop = paddingTop + y - childVerticalPixels;
-                        break;
-                    case Gravity.CENTER_VERTICAL:
-                        childTop = paddingTop + y - childVerticalPixels/2;
-                        break;
-                    case Gravity.TOP:
-                    default:
-                        childTop = paddingTop + y;
-                }
-                childBottom = childTop + childVerticalPixels;
-
-                switch(lp.gravity & Gravity.HORIZONTAL_GRAVITY_MASK){
-                    case Gravity.RIGHT:
-                        childLeft = paddingLeft + x - childHorizontalPixels;
-                        break;
-                    case Gravity.CENTER_HORIZONTAL:
-                        childLeft = paddingLeft + x - childHorizontalPixels/2;
-                        break;
-                    case Gravity.LEFT:
-                    default:
-                        childLeft = paddingLeft + x;
-                }
-                childRight = childLeft + childHorizontalPixels;
-
-                child.layout(childLeft, childTop, childRight, childBottom);
+                final PercentLayout.LayoutParams lp = (PercentLayout.LayoutParams) child.getLayoutParams();
+                if (containerChanged || laidOutChildren[i] != child ||
+                        !lp.isPositionedWith(child.getMeasuredWidth(), child.getMeasuredHeight()))
+                    computeChildRect(i, child, lp);
+                child.layout(childLefts[i], childTops[i], childRights[i], childBottoms[i]);
             }
         }
     }
@@ -267,6 +356,28 @@ public class PercentLayout extends ViewGroup {
          */
         public float high;
         public int gravity;
+
+        // What the child was last measured with, see PercentLayout#onMeasure
+        private boolean measured;
+        private int measuredParentWidthSpec;
+        private int measuredParentHeightSpec;
+        private int measuredHorizontalPadding;
+        private int measuredVerticalPadding;
+        private int measuredLayoutWidth;
+        private int measuredLayoutHeight;
+        private float measuredWide;
+        private float measuredHigh;
+
+        // What the child was last positioned with, see PercentLayout#computeChildRects
+        private boolean positioned;
+        private float positionedX;
+        private float positionedY;
+        private float positionedWide;
+        private float positionedHigh;
+        private int positionedGravity;
+        private int positionedMeasuredWidth;
+        private int positionedMeasuredHeight;
+
         /**
          * Creates a new set of layout parameters with the specified width,
          * height and location.
@@ -317,5 +428,51 @@ public class PercentLayout extends ViewGroup {
         public LayoutParams(ViewGroup.LayoutParams source) {
             super(source);
         }
+
+        boolean isMeasuredWith(int widthSpec, int heightSpec, int horizontalPadding, int verticalPadding) {
+            return measured &&
+                measuredParentWidthSpec == widthSpec &&
+                measuredParentHeightSpec == heightSpec &&
+                measuredHorizontalPadding == horizontalPadding &&
+                measuredVerticalPadding == verticalPadding &&
+                measuredLayoutWidth == width &&
+                measuredLayoutHeight == height &&
+                measuredWide == wide &&
+                measuredHigh == high;
+        }
+
+        void setMeasuredWith(int widthSpec, int heightSpec, int horizontalPadding, int verticalPadding) {
+            measured = true;
+            measuredParentWidthSpec = widthSpec;
+            measuredParentHeightSpec = heightSpec;
+            measuredHorizontalPadding = horizontalPadding;
+            measuredVerticalPadding = verticalPadding;
+            measuredLayoutWidth = width;
+            measuredLayoutHeight = height;
+            measuredWide = wide;
+            measuredHigh = high;
+        }
+
+        boolean isPositionedWith(int measuredWidth, int measuredHeight) {
+            return positioned &&
+                positionedX == x &&
+                positionedY == y &&
+                positionedWide == wide &&
+                positionedHigh == high &&
+                positionedGravity == gravity &&
+                positionedMeasuredWidth == measuredWidth &&
+                positionedMeasuredHeight == measuredHeight;
+        }
+
+        void setPositionedWith(int measuredWidth, int measuredHeight) {
+            positioned = true;
+            positionedX = x;
+            positionedY = y;
+            positionedWide = wide;
+            positionedHigh = high;
+            positionedGravity = gravity;
+            positionedMeasuredWidth = measuredWidth;
+            positionedMeasuredHeight = measuredHeight;
+        }
     }
 }
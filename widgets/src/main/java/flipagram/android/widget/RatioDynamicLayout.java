@@ -23,6 +23,8 @@ import android.view.Gravity;
 import android.view.View;
 import android.view.ViewGroup;
 
+import java.util.Arrays;
+
 import flipagram.android.widgets.R;
 
 /**
@@ -33,6 +35,17 @@ import flipagram.android.widgets.R;
  */
 public class RatioDynamicLayout extends ViewGroup {
     private Point childPixels = new Point();
+    // Where each child is laid out, by child index, worked out in onMeasure or else onLayout
+    private View[] laidOutChildren = new View[0];
+    private int[] childLefts = new int[0];
+    private int[] childTops = new int[0];
+    private int[] childRights = new int[0];
+    private int[] childBottoms = new int[0];
+    // The container the rects were worked out for
+    private float rectsPaddingTop;
+    private float rectsPaddingLeft;
+    private float rectsContainerVerticalPixels;
+    private float rectsContainerHorizontalPixels;
 
     public RatioDynamicLayout(Context context) {
         this(context, null);
@@ -61,111 +74,261 @@ public class RatioDynamicLayout extends ViewGroup {
     protected void onMeasure(int widthSpec, int heightSpec) {
         final int width = MeasureSpec.getSize(widthSpec);
         final int height= MeasureSpec.getSize(heightSpec);
-        final int widthAtMostSpec = MeasureSpec.makeMeasureSpec(width,  MeasureSpec.AT_MOST);
-        final int heightAtMostSpec = MeasureSpec.makeMeasureSpec(height,  MeasureSpec.AT_MOST);
+        // Children are measured once, here, against the container inside the padding.
+        // onLayout uses these measurements as they are.
+        final int containerHorizontalPixels = Math.max(0, width - getPaddingLeft() - getPaddingRight());
+        final int containerVerticalPixels = Math.max(0, height - getPaddingTop() - getPaddingBottom());
+        final int widthAtMostSpec = MeasureSpec.makeMeasureSpec(containerHorizontalPixels,  MeasureSpec.AT_MOST);
+        final int heightAtMostSpec = MeasureSpec.makeMeasureSpec(containerVerticalPixels,  MeasureSpec.AT_MOST);
 
         final int count = getChildCount();
         for (int i = 0; i < count; i++) {
             final View child = getChildAt(i);
             if (child.getVisibility() != GONE) {
-                child.forceLayout();
-                child.measure(widthAtMostSpec,heightAtMostSpec);
+                RatioDynamicLayout.LayoutParams lp = (RatioDynamicLayout.LayoutParams) child.getLayoutParams();
+                if (lp.ratio > 0) {
+                    // Sized by arithmetic, the child's content is never asked how big it wants to be
+                    child.measure(
+                        MeasureSpec.makeMeasureSpec((int) (lp.ratio * containerHorizontalPixels), MeasureSpec.EXACTLY),
+                        MeasureSpec.makeMeasureSpec((int) (lp.ratio * containerVerticalPixels), MeasureSpec.EXACTLY));
+                } else {
+                    child.measure(widthAtMostSpec,heightAtMostSpec);
+                }
             }
         }
 
         super.onMeasure(
             MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY),
             MeasureSpec.makeMeasureSpec(height, MeasureSpec.EXACTLY));
+
+        computeChildRects();
     }
 
 
-    @Override
-    protected void onLayout(boolean changed, int l, int t, int r, int b) {
-        int count = getChildCount();
+    /**
+     * Work out where each child is laid out, into the arrays onLayout reads. Only the children
+     * that were moved, resized or replaced since are worked out again, unless the container
+     * changed. Children with a centerPoint or centerInViewOnNextLayout are left to onLayout,
+     * their lp.x,y are worked out once, against the size the layout ends up with, and a parent
+     * may measure more than once with different sizes before that.
+     */
+    private void computeChildRects() {
+        final int count = getChildCount();
+        ensureRectCapacity(count);
+        final boolean containerChanged = updateContainer();
+        for (int i = 0; i < count; i++) {
+            View child = getChildAt(i);
+            if (child.getVisibility() != GONE) {
+                RatioDynamicLayout.LayoutParams lp = (RatioDynamicLayout.LayoutParams) child.getLayoutParams();
 
-        float childLeft=0;
-        float childTop=0;
-        float childRight=0;
-        float childBottom=0;
+                if (!containerChanged && laidOutChildren[i] == child &&
+                        lp.isPositionedWith(child.getMeasuredWidth(), child.getMeasuredHeight()))
+                    continue;
+                if (lp.centerPoint!=null || lp.centerInViewOnNextLayout) {
+                    laidOutChildren[i] = null;
+                    continue;
+                }
+                computeChildRect(i, child, lp);
+            }
+        }
+        // Don't hold on to removed children
+        for (int i = count; i < laidOutChildren.length; i++)
+            laidOutChildren[i] = null;
+    }
 
+    private void ensureRectCapacity(int count) {
+        if (laidOutChildren.length < count) {
+            laidOutChildren = Arrays.copyOf(laidOutChildren, count);
+            childLefts = Arrays.copyOf(childLefts, count);
+            childTops = Arrays.copyOf(childTops, count);
+            childRights = Arrays.copyOf(childRights, count);
+            childBottoms = Arrays.copyOf(childBottoms, count);
+        }
+    }
+
+    /**
+     * Take the container inside the padding from the measured size.
+     * @return whether it changed since the rects were last worked out
+     */
+    private boolean updateContainer() {
         final float paddingTop = getPaddingTop();
         final float paddingLeft = getPaddingLeft();
-        final float verticalPadding = paddingTop + getPaddingBottom();
-        final float horizontalPadding = getPaddingLeft() + getPaddingRight();
+        final float containerVerticalPixels = getMeasuredHeight() - paddingTop - getPaddingBottom();
+        final float containerHorizontalPixels = getMeasuredWidth() - paddingLeft - getPaddingRight();
 
-        final float containerVerticalPixels = getMeasuredHeight() - verticalPadding;
-        final float containerHorizontalPixels = getMeasuredWidth() - horizontalPadding;
-        final int widthAtMostSpec = MeasureSpec.makeMeasureSpec((int)containerHorizontalPixels,  MeasureSpec.AT_MOST);
-        final int heightAtMostSpec = MeasureSpec.makeMeasureSpec((int)containerVerticalPixels,  MeasureSpec.AT_MOST);
+        final boolean containerChanged =
+            rectsPaddingTop != paddingTop ||
+            rectsPaddingLeft != paddingLeft ||
+            rectsContainerVerticalPixels != containerVerticalPixels ||
+            rectsContainerHorizontalPixels != containerHorizontalPixels;
+        rectsPaddingTop = paddingTop;
+        rectsPaddingLeft = paddingLeft;
+        rectsContainerVerticalPixels = containerVerticalPixels;
+        rectsContainerHorizontalPixels = containerHorizontalPixels;
+        return containerChanged;
+    }
 
+    /**
+     * Work out where the child at index i is laid out within the container last taken by
+     * updateContainer(), converting a centerPoint or centerInViewOnNextLayout to lp.x,y.
+     */
+    private void computeChildRect(int i, View child, RatioDynamicLayout.LayoutParams lp) {
+        float childLeft;
+        float childTop;
+        float childRight;
+        float childBottom;
 
-        for (int i = 0; i < count; i++) {
-            View child = getChildAt(i);
-            if (child.getVisibility() != GONE) {
-                RatioDynamicLayout.LayoutParams lp = (RatioDynamicLayout.LayoutParams) child.getLayoutParams();
+        final float paddingTop = rectsPaddingTop;
+        final float paddingLeft = rectsPaddingLeft;
+        final float containerVerticalPixels = rectsContainerVerticalPixels;
+        final float containerHorizontalPixels = rectsContainerHorizontalPixels;
 
-                child.forceLayout();
-                child.measure(widthAtMostSpec,heightAtMostSpec);
-                childPixels.y = child.getMeasuredHeight();
-                childPixels.x = child.getMeasuredWidth();
-
-                if (lp.centerInViewOnNextLayout) {
-                    childTop = containerVerticalPixels/2 - childPixels.y/2;
-                    childBottom = childTop + childPixels.y;
-                    lp.y = calculateY(Gravity.TOP, // This centers multi-line text vertically
-                            childTop, childBottom, paddingTop, containerVerticalPixels);
-                } else if (lp.centerPoint!=null){
-                    childTop = lp.centerPoint.y - childPixels.y/2;
-                    childBottom = childTop + childPixels.y;
-                    lp.y = calculateY(lp.gravity & Gravity.VERTICAL_GRAVITY_MASK,
-                            childTop, childBottom, paddingTop, containerVerticalPixels);
-                } else {
-                    final int y = (int) (lp.y * containerVerticalPixels);
-                    switch (lp.gravity & Gravity.VERTICAL_GRAVITY_MASK) {
-                        case Gravity.BOTTOM:
-                            childTop = paddingTop + y - childPixels.y;
-                            break;
-                        case Gravity.CENTER_VERTICAL:
-                            childTop = paddingTop + y - childPixels.y / 2;
-                            break;
-                        case Gravity.TOP:
-                        default:
-                            childTop = paddingTop + y;
-                    }
-                    childBottom = childTop + childPixels.y;
-                }
+        laidOutChildren[i] = child;
 
-                if (lp.centerInViewOnNextLayout) {
-                    childLeft = containerHorizontalPixels/2 - childPixels.x/2;
-                    childRight = childLeft + childPixels.x;
-                    lp.x = calculateX(lp.gravity & Gravity.HORIZONTAL_GRAVITY_MASK,
-                            childLeft, childRight, paddingLeft, containerHorizontalPixels);
-                } else if (lp.centerPoint!=null) {
-                    childLeft = lp.centerPoint.x - childPixels.x/2;
-                    childRight = childLeft + childPixels.x;
-                    lp.x = calculateX(lp.gravity & Gravity.HORIZONTAL_GRAVITY_MASK,
-                            childLeft, childRight, paddingLeft, containerHorizontalPixels);
-                } else {
-                    final int x = (int) (lp.x * containerHorizontalPixels);
-                    switch (lp.gravity & Gravity.HORIZONTAL_GRAVITY_MASK) {
-                        case Gravity.RIGHT:
-                            childLeft = paddingLeft + x - childPixels.x;
-                            break;
-                        case Gravity.CENTER_HORIZONTAL:
-                            childLeft = paddingLeft + x - childPixels.x / 2;
-                            break;
-                        case Gravity.LEFT:
-                        default:
-                            childLeft = paddingLeft + x;
-                    }
-                    childRight = childLeft + childPixels.x;
-                }
-                lp.centerPoint = null;
-                lp.centerInViewOnNextLayout = false;
+        childPixels.y = child.getMeasuredHeight();
+        childPixels.x = child.getMeasuredWidth();
+
+        if (lp.centerInViewOnNextLayout) {
+            childTop = containerVerticalPixels/2 - childPixels.y/2;
+            childBottom = childTop + childPixels.y;
+            lp.y = calculateY(Gravity.TOP, // This centers multi-line text vertically
+                    childTop, childBottom, paddingTop, containerVerticalPixels);
+        } else if (lp.centerPoint!=null){
+            childTop = lp.centerPoint.y - childPixels.y/2;
+            childBottom = childTop + childPixels.y;
+            lp.y = calculateY(lp.gravity & Gravity.VERTICAL_GRAVITY_MASK,
+                    childTop, childBottom, paddingTop, containerVerticalPixels);
+        } else {
+            final int y = (int) (lp.y * containerVerticalPixels);
+            switch (lp.gravity & Gravity.VERTICAL_GRAVITY_MASK) {
+                case Gravity.BOTTOM:
+                    childTop = paddingTop + y - childPixels.y;
+                    break;
+                case Gravity.CENTER_VERTICAL:
+                    childTop = paddingTop + y - childPixels.y / 2;
+                    break;
+                case Gravity.TOP:
+                default:
+                    childTop = paddingTop + y;
+            }
+            childBottom = childTop + childPixels.y;
+        }
 
-                child.layout((int)childLeft, (int)childTop, (int)childRight, (int)childBottom);
+        if (lp.centerInViewOnNextLayout) {
+            childLeft = containerHorizontalPixels/2 - childPixels.x/2;
+            childRight = childLeft + childPixels.x;
+            lp.x = calculateX(lp.gravity & Gravity.HORIZONTAL_GRAVITY_MASK,
+                    childLeft, childRight, paddingLeft, containerHorizontalPixels);
+        } else if (lp.centerPoint!=null) {
+            childLeft = lp.centerPoint.x - childPixels.x/2;
+            childRight = childLeft + childPixels.x;
+            lp.x = calculateX(lp.gravity & Gravity.HORIZONTAL_GRAVITY_MASK,
+                    childLeft, childRight, paddingLeft, containerHorizontalPixels);
+        } else {
+            final int x = (int) (lp.x * containerHorizontalPixels);
+            switch (lp.gravity & Gravity.HORIZONTAL_GRAVITY_MASK) {
+                case Gravity.RIGHT:
+                    childLeft = paddingLeft + x - childPixels.x;
+                    break;
+                case Gravity.CENTER_HORIZONTAL:
+                    childLeft = paddingLeft + x - childPixels.x / 2;
+                    break;
+                case Gravity.LEFT:
+                default:
+                    childLeft = paddingLeft + x;
             }
+            childRight = childLeft + childPixels.x;
         }
+        lp.centerPoint = null;
+        lp.centerInViewOnNextLayout = false;
+        lp.setPositionedWith(child.getMeasuredWidth(), child.getMeasuredHeight());
+
+        childLefts[i] = (int)childLeft;
+        childTops[i] = (int)childTop;
+        childRights[i] = (int)childRight;
+        childBottoms[i] = (int)childBottom;
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        final int count = getChildCount();
+        // Children added since onMeasure have no rect yet
+        ensureRectCapacity(count);
+        final boolean containerChanged = updateContainer();
+        for (int i = 0; i < count; i++) {
+            final View child = getChildAt(i);
+            if (child.getVisibility() != GONE) {
+                final RatioDynamicLayout.LayoutParams lp = (RatioDynamicLayout.LayoutParams) child.getLayoutParams();
+                if (containerChanged || laidOutChildren[i] != child ||
+                        !lp.isPositionedWith(child.getMeasuredWidth(), child.getMeasuredHeight()))
+                    computeChildRect(i, child, lp);
+                child.layout(childLefts[i], childTops[i], childRights[i], childBottoms[i]);
+            }
+        }
+    }
+
+    /**
+     * Start dragging child. Until {@link #endChildDrag(android.view.View)} the child is moved with
+     * its translation, drawn from a hardware layer, so moving it costs no measure or layout pass.
+     * @param child
+     */
+    public void beginChildDrag(View child){
+        final RatioDynamicLayout.LayoutParams lp = (RatioDynamicLayout.LayoutParams) child.getLayoutParams();
+        if (lp.dragging)
+            return;
+        lp.dragging = true;
+        lp.layerTypeBeforeDrag = child.getLayerType();
+        child.setLayerType(LAYER_TYPE_HARDWARE, null);
+    }
+
+    /**
+     * Move a dragged child so that it's centered on the point, in this layout's coordinates.
+     * @param child
+     * @param centerX
+     * @param centerY
+     */
+    public void dragChildTo(View child, float centerX, float centerY){
+        child.setTranslationX(centerX - (child.getLeft() + child.getWidth() / 2f));
+        child.setTranslationY(centerY - (child.getTop() + child.getHeight() / 2f));
+    }
+
+    /**
+     * Move a dragged child by dx, dy pixels.
+     * @param child
+     * @param dx
+     * @param dy
+     */
+    public void dragChildBy(View child, float dx, float dy){
+        child.setTranslationX(child.getTranslationX() + dx);
+        child.setTranslationY(child.getTranslationY() + dy);
+    }
+
+    /**
+     * Stop dragging child. Where it was dragged to is committed to its lp.x,y, according to
+     * its gravity, in a single layout pass.
+     * @param child
+     */
+    public void endChildDrag(View child){
+        final RatioDynamicLayout.LayoutParams lp = (RatioDynamicLayout.LayoutParams) child.getLayoutParams();
+        if (!lp.dragging)
+            return;
+        lp.dragging = false;
+
+        final float paddingTop = getPaddingTop();
+        final float paddingLeft = getPaddingLeft();
+        final float containerVerticalPixels = getHeight() - paddingTop - getPaddingBottom();
+        final float containerHorizontalPixels = getWidth() - paddingLeft - getPaddingRight();
+        final float childLeft = child.getLeft() + child.getTranslationX();
+        final float childTop = child.getTop() + child.getTranslationY();
+        lp.x = calculateX(lp.gravity & Gravity.HORIZONTAL_GRAVITY_MASK,
+                childLeft, childLeft + child.getWidth(), paddingLeft, containerHorizontalPixels);
+        lp.y = calculateY(lp.gravity & Gravity.VERTICAL_GRAVITY_MASK,
+                childTop, childTop + child.getHeight(), paddingTop, containerVerticalPixels);
+
+        child.setTranslationX(0);
+        child.setTranslationY(0);
+        child.setLayerType(lp.layerTypeBeforeDrag, null);
+        requestLayout();
     }
 
     /**
@@ -244,7 +407,9 @@ public class RatioDynamicLayout extends ViewGroup {
          */
         public float y;
         /**
-         * The ratio of container percentage
+         * The ratio of container percentage. When greater than 0 the child is exactly this
+         * ratio of the container's width wide and of its height high, otherwise it's measured
+         * at most the size of the container.
          */
         public float ratio;
         /**
@@ -264,6 +429,18 @@ public class RatioDynamicLayout extends ViewGroup {
          */
         public boolean centerInViewOnNextLayout = false;
 
+        // Between RatioDynamicLayout#beginChildDrag and #endChildDrag
+        boolean dragging;
+        int layerTypeBeforeDrag;
+
+        // What the child was last positioned with, see RatioDynamicLayout#computeChildRects
+        private boolean positioned;
+        private float positionedX;
+        private float positionedY;
+        private int positionedGravity;
+        private int positionedMeasuredWidth;
+        private int positionedMeasuredHeight;
+
         public LayoutParams(int width, int height) {
             super(width, height);
         }
@@ -316,5 +493,25 @@ public class RatioDynamicLayout extends ViewGroup {
         public LayoutParams(ViewGroup.LayoutParams source) {
             super(source);
         }
+
+        boolean isPositionedWith(int measuredWidth, int measuredHeight) {
+            return positioned &&
+                centerPoint == null &&
+                !centerInViewOnNextLayout &&
+                positionedX == x &&
+                positionedY == y &&
+                positionedGravity == gravity &&
+                positionedMeasuredWidth == measuredWidth &&
+                positionedMeasuredHeight == measuredHeight;
+        }
+
+        void setPositionedWith(int measuredWidth, int measuredHeight) {
+            positioned = true;
+            positionedX = x;
+            positionedY = y;
+            positionedGravity = gravity;
+            positionedMeasuredWidth = measuredWidth;
+            positionedMeasuredHeight = measuredHeight;
+        }
     }
 }